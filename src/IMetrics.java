@@ -6,28 +6,28 @@ interface IMetrics {
     String getPath(); 				// gets path back later
     // basic counts for any file
     //
-    int getLineCount();
-    int getWordCount();
-    int getCharacterCount();
+    long getLineCount();
+    long getWordCount();
+    long getCharacterCount();
 
     // source code line counts
     //
-    int getSourceLineCount();
-    int getCommentLineCount();
+    long getSourceLineCount();
+    long getCommentLineCount();
 
     // Halstead metrics
     //
-    int getHalsteadn1();            // number of distinct operands
-    int getHalsteadn2();            // number of distinct operators
-    int getHalsteadN1();            // number of operands
-    int getHalsteadN2();            // number of operators
+    long getHalsteadn1();            // number of distinct operands
+    long getHalsteadn2();            // number of distinct operators
+    long getHalsteadN1();            // number of operands
+    long getHalsteadN2();            // number of operators
 
-    int getHalsteadVocabulary();
-    int getHalsteadProgramLength();
-    int getHalsteadCalculatedProgramLenght();
-    int getHalsteadVolume();
-    int getHalsteadDifficulty();
-    int getHalsteadEffort();
-    int getHalsteadTime();
-    int getHalsteadBugs();
+    long getHalsteadVocabulary();
+    long getHalsteadProgramLength();
+    long getHalsteadCalculatedProgramLenght();
+    long getHalsteadVolume();
+    long getHalsteadDifficulty();
+    long getHalsteadEffort();
+    long getHalsteadTime();
+    long getHalsteadBugs();
 }
\ No newline at end of file
@@ -1,4 +1,5 @@
 import java.io.File;
+import java.nio.channels.ReadableByteChannel;
 
 /*	Metrics.java
 
@@ -13,18 +14,52 @@ import java.io.File;
 public class Metrics implements IMetrics {
 		protected String filePath;
 		protected MetricsFileNode metricsNode = null;	
+		protected final MetricsPlan plan;
+		protected final MetricsReadOptions options;
+		
+		public Metrics() {
+			this(MetricsPlan.FULL);
+		}
+		/**
+		 * @param plan Stages to run; metrics outside the plan read as 0.
+		 */
+		public Metrics(MetricsPlan plan) {
+			this(plan, MetricsReadOptions.DEFAULT);
+		}
+		/**
+		 * @param plan Stages to run; metrics outside the plan read as 0.
+		 * @param options How the run reads its files.
+		 */
+		Metrics(MetricsPlan plan, MetricsReadOptions options) {
+			this.plan = plan;
+			this.options = options;
+		}
 	
+	    /** Analyzes the file. A file that cannot be read gets no metrics at all, so the caller decides how to report it.
+	     * @param path File to analyze.
+	     * @return True once the file has been counted.
+	     * @throws IllegalArgumentException Throws if there is no such file.
+	     * @throws java.io.UncheckedIOException Throws if the file cannot be read, e.g. because it is a directory.
+	     */
 	    public boolean setPath(String path) {
 	    	filePath = path;
-	    	try {
-	    		metricsNode = new MetricsFileNode(new File(path));
-	    		metricsNode.getFileMetrics();
-	    	} catch (Exception e) {
-	    		System.out.println("Could not create metricsFileNode!");
-	    		e.printStackTrace();
-	    	}
+	    	MetricsEvents.FileAnalysis event = new MetricsEvents.FileAnalysis();
+	    	event.begin();
+	    	metricsNode = new MetricsFileNode(new File(path), plan, options);
+	    	metricsNode.getFileMetrics();
+	    	MetricsEvents.fileAnalyzed(event, this, metricsNode.file);
 	    	return metricsNode.file.exists();
 	    }
+	    /** Analyzes a stream instead of a file.
+	     * @param in Stream to read to its end.
+	     * @param name Name to report the stream under.
+	     * @param extension Extension the contents would have as a file, e.g. ".java", or "".
+	     */
+	    public void setStream(ReadableByteChannel in, String name, String extension) {
+	    	filePath = name;
+	    	metricsNode = new MetricsFileNode(extension, plan);
+	    	metricsNode.getStreamMetrics(in);
+	    }
 	    public String getPath() {
 	    	return filePath;
 	    }
@@ -33,60 +68,60 @@ public class Metrics implements IMetrics {
 			return false;
 		};
 		
-		 public int getLineCount() {
+		 public long getLineCount() {
 			return metricsNode.lines;
 		};
-		 public int getWordCount() {
+		 public long getWordCount() {
 			 return metricsNode.words;
 		 }
-		 public int getCharacterCount() {
+		 public long getCharacterCount() {
 			 return metricsNode.chars;
 		 };
 		
 		// source code line counts
-		 public int getSourceLineCount() {
+		 public long getSourceLineCount() {
 			 return 0;
 		 };
-		 public int getCommentLineCount() {
+		 public long getCommentLineCount() {
 			 return 0;
 		 };
 		
 		// Halstead metrics
-		 public int getHalsteadn1() {
+		 public long getHalsteadn1() {
 			 return 0;
 		 };            // number of distinct operands
-		 public int getHalsteadn2() {
+		 public long getHalsteadn2() {
 			 return 0;
 		 };            // number of distinct operators
-		 public int getHalsteadN1() {
+		 public long getHalsteadN1() {
 			 return 0;
 		 };            // number of operands
-		 public int getHalsteadN2(){
+		 public long getHalsteadN2(){
 			 return 0;
 		 };            // number of operators
 		
-		 public int getHalsteadVocabulary() {
+		 public long getHalsteadVocabulary() {
 			 return 0;
 		 };
-		 public int getHalsteadProgramLength() {
+		 public long getHalsteadProgramLength() {
 			 return 0;
 		 };
-		 public int getHalsteadCalculatedProgramLenght() {
+		 public long getHalsteadCalculatedProgramLenght() {
 			 return 0;
 		 };
-		 public int getHalsteadVolume() {
+		 public long getHalsteadVolume() {
 			 return 0;
 		 };
-		 public int getHalsteadDifficulty() {
+		 public long getHalsteadDifficulty() {
 			 return 0;
 		 };
-		 public int getHalsteadEffort() {
+		 public long getHalsteadEffort() {
 			 return 0;
 		 };
-		 public int getHalsteadTime() {
+		 public long getHalsteadTime() {
 			 return 0;
 		 };
-		 public int getHalsteadBugs() {
+		 public long getHalsteadBugs() {
 			 return 0;
 		 };
 }
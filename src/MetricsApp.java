@@ -9,8 +9,25 @@
 */
 import java.io.*;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 
 import picocli.CommandLine;
 import picocli.CommandLine.*;
@@ -39,10 +56,85 @@ public class MetricsApp implements Runnable{
 	@Option(description = "Calculate Halstead complexity", names = {"-H"}, paramLabel="countHalstead")
 	boolean calcHalstead;
 	
-	@Parameters
+	@Option(description = "How files are read: ${COMPLETION-CANDIDATES}. AUTO memory-maps files of at least --map-threshold bytes (default: AUTO)", 
+			names = {"--read-mode"}, paramLabel="<mode>")
+	MetricsFileNode.ReadMode readMode = MetricsFileNode.ReadMode.AUTO;
+	
+	@Option(description = "Smallest file, in bytes, that AUTO read mode memory-maps (default: 67108864)", names = {"--map-threshold"}, paramLabel="<bytes>")
+	long mapThreshold = MetricsReadOptions.DEFAULT_MAP_THRESHOLD;
+	
+	@Option(description = "Smallest file, in bytes, whose counting is split across cores (default: 268435456)", names = {"--split-threshold"}, paramLabel="<bytes>")
+	long splitThreshold = MetricsReadOptions.DEFAULT_SPLIT_THRESHOLD;
+	
+	@Option(description = "Number of files to analyze in parallel, 0 for one per core (default: 1)", names = {"-j", "--threads"}, paramLabel="<threads>")
+	int threads = 1;
+	
+	@Option(description = "Analyze each file on its own virtual thread, to overlap slow I/O", names = {"--virtual"})
+	boolean virtualThreads;
+	
+	@Option(description = "Most files open at once with --virtual (default: 256)", names = {"--max-open"}, paramLabel="<files>")
+	int maxOpenFiles = 256;
+	
+	@Option(description = "Walk directories given as arguments, analyzing every file under them", names = {"-r", "--recursive"})
+	boolean recursive;
+	
+	@Option(description = "With -r, only analyze files matching this glob; repeatable", names = {"--include"}, paramLabel="<glob>")
+	List<String> includeGlobs;
+	
+	@Option(description = "With -r, skip files and directories matching this glob; repeatable", names = {"--exclude"}, paramLabel="<glob>")
+	List<String> excludeGlobs;
+	
+	@Option(description = "With -r, only analyze files with these extensions, e.g. java,c,h", names = {"--ext"}, split = ",", paramLabel="<ext>")
+	List<String> extensions;
+	
+	@Option(description = "Reuse stored results for files whose contents have not changed", names = {"--cache"})
+	boolean useCache;
+	
+	@Option(description = "Directory of the result cache (default: .metrics-cache)", names = {"--cache-dir"}, paramLabel="<dir>")
+	String cacheDirectory = ".metrics-cache";
+	
+	@Option(description = "Size budget of the result cache in bytes (default: 67108864)", names = {"--cache-size"}, paramLabel="<bytes>")
+	long cacheSize = 64L << 20;
+	
+	@Option(description = "Only count what was appended to files since the last --resume run; state is kept in --cache-dir. Overrides --cache",
+			names = {"--resume"})
+	boolean resume;
+	
+	@Option(description = "Language of standard input (\"-\") for -s, -C and -H: c, cpp or java", names = {"--lang"}, paramLabel="<language>")
+	String stdinLanguage;
+	
+	@Option(description = "Report wall and CPU time per phase, throughput, GC time and the slowest files on stderr", names = {"--stats"})
+	boolean showStats;
+	
+	@Option(description = "Number of slowest files --stats lists (default: 10)", names = {"--slowest"}, paramLabel="<files>")
+	int slowestFiles = 10;
+	
+	@Option(description = "Stay resident and serve requests on this Unix domain socket", names = {"--daemon"}, paramLabel="<socket>")
+	String daemonSocket;
+	
+	@Option(description = "Must come first: send the remaining arguments to the daemon on this socket", names = {"--connect"}, paramLabel="<socket>")
+	String connectSocket;
+	
+	@Option(description = "Output layout: ${COMPLETION-CANDIDATES}. NDJSON and CSV write rows as they finish, like --stream, "
+			+ "and leave out the total (default: TABLE)", names = {"--format"}, paramLabel="<format>")
+	MetricsWriter.Format format = MetricsWriter.Format.TABLE;
+	
+	@Option(description = "Print each row as soon as it and all rows before it are done, in the order files were given or found, "
+			+ "and forget it afterwards. Columns get a fixed minimum width instead of being sized to the totals", names = {"--stream"})
+	boolean stream;
+	
+	@Option(description = "Keep running, re-analyzing files as they change and printing updated totals", names = {"--watch"})
+	boolean watch;
+	
+	@Parameters(description = "Files to analyze; \"-\" reads standard input")
 	LinkedList<String> filePaths;	
 	
+	private static final String STDIN = "-";
+	private static final String STDIN_ARGUMENT = "\0-"; //How main() hands "-" to picocli, which would reject it as an unknown option
+	private static final ConcurrentHashMap<Path, Object> STORE_LOCKS = new ConcurrentHashMap<>();	//Per cache directory
 	private static final int COLUMN_SEP_WIDTH = 1; //Amount of whitespace to put between columns.
+	private static final int STREAM_COLUMN_WIDTH = 7; //Narrowest column with --stream, where totals are not known up front; as in wc.
+	private static final int WINDOW_PER_WORKER = 4; //Results that may wait for an earlier, slower file, per concurrent analysis.
 	private static final String COLUMN_LINES = "lines", 
 								COLUMN_WORDS = "words",
 								COLUMN_CHARS = "chars",
@@ -61,118 +153,530 @@ public class MetricsApp implements Runnable{
 								COLUMN_BUGS = "estBugs",
 								COLUMN_TIME = "estTime";
 	
-	private int totalLines, totalChars, totalWords, totalCode, totalComments, totalUniqueOperands, 
-				totalUniqueOperators, totalOperands, totalOperators,
-				totalEffort, totalVocab, totalLength, totalCalcLength, totalVolume, totalDifficulty, 
-				totalBugs, totalTime;
+	private final MetricsTotals totals = new MetricsTotals();
 	private LinkedList<IMetrics> listHead = null;	
+	private final Map<String, Integer> rootOf = new HashMap<String, Integer>();	//Index of the root each walked file came from, for sorting the table
+	private MetricsPlan plan = MetricsPlan.FULL;
+	private MetricsReadOptions readOptions = MetricsReadOptions.DEFAULT;
+	private MetricsCache cache = null;
+	private MetricsStatIndex statIndex = null;
+	private MetricsResumeStore resumeStore = null;
+	private MetricsWriter writer = null;	//Set for NDJSON and CSV output
+	private MetricsStats stats = null;		//Set with --stats
+	private int minimumColumnWidth = 0;
+	private int rowCount = 0;
+	private boolean ran = false;			//False if picocli rejected the arguments before run()
+	private volatile boolean failed = false;	//Set when a file could not be analyzed, from whichever worker tried
+	private final PrintStream out, err;
+	private final Path workingDirectory;	//Relative paths resolve against this; null for the JVM's own
+	
+	public MetricsApp() {
+		this(System.out, System.err, null);
+	}
+	/**
+	 * @param out Where output is printed.
+	 * @param err Where problems with individual files are reported, so they never mix with rows.
+	 * @param workingDirectory Directory relative file paths are resolved against, or null for the current one.
+	 */
+	MetricsApp(PrintStream out, PrintStream err, Path workingDirectory) {
+		this.out = out;
+		this.err = err;
+		this.workingDirectory = workingDirectory;
+	}
+	
+	/**
+	 * @return 0 if every file was analyzed, 1 if one could not be or the arguments were rejected; as wc does.
+	 */
+	int exitStatus() {
+		return ran && !failed ? 0 : 1;
+	}
 
 
 	public static void main(String[] args) {		
+		if (args.length > 0 && (args[0].equals("--connect") || args[0].startsWith("--connect="))) {
+			connect(args);
+			return;
+		}
+		args = mapStdinArguments(args);
 		MetricsApp metricsAppInstance = new MetricsApp();
 		if (args.length == 0 || showHelp ) {
 			CommandLine.usage(metricsAppInstance, System.err);
 			System.exit(0);
 		}
 		CommandLine.run(metricsAppInstance, args);
+		if (metricsAppInstance.exitStatus() != 0) System.exit(metricsAppInstance.exitStatus());
 	}	
 	
+	/** Stands in for each "-" before any "--", which picocli would reject as an unknown option; run() maps it back.
+	 * @param args Arguments as given.
+	 * @return The arguments, with "-" replaced in place.
+	 */
+	static String[] mapStdinArguments(String[] args) {
+		for (int i = 0; i < args.length && !args[i].equals("--"); i++) 
+			if (args[i].equals(STDIN)) args[i] = STDIN_ARGUMENT;
+		return args;
+	}
+	
+	/** Thin client: hands the arguments after --connect to a running daemon without starting picocli.
+	 * @param args Arguments, beginning with --connect.
+	 */
+	private static void connect(String[] args) {
+		boolean inline = args[0].startsWith("--connect=");
+		int first = inline ? 1 : 2;
+		if (args.length < first) {
+			System.err.println("--connect needs a socket path");
+			System.exit(1);
+		}
+		String socket = inline ? args[0].substring("--connect=".length()) : args[1];
+		String[] forwarded = Arrays.copyOfRange(args, first, args.length);
+		//The daemon cannot read this process's standard input, so "-" is refused here rather than sent.
+		if (Arrays.asList(mapStdinArguments(forwarded.clone())).contains(STDIN_ARGUMENT)) {
+			System.err.println("Standard input cannot be read through a daemon.");
+			System.exit(1);
+		}
+		int status;
+		try { status = MetricsDaemon.forward(Paths.get(socket), forwarded); }
+		catch (IOException e) {
+			System.err.println("Could not reach metrics daemon at " + socket + ": " + e.getMessage());
+			status = 1;
+		}
+		if (status != 0) System.exit(status);
+	}
+	
 	public void run() {		
+		ran = true;
+		if (daemonSocket != null) {
+			if (workingDirectory != null) fail("Already running as a daemon.");
+			else {
+				try { MetricsDaemon.serve(Paths.get(daemonSocket)); }
+				catch (IOException e) { fail("Could not start daemon on " + daemonSocket + ": " + e.getMessage()); }
+			}
+			return;
+		}
+		if (filePaths == null) {
+			CommandLine.usage(this, out);
+			return;
+		}
+		filePaths.replaceAll(path -> path.equals(STDIN_ARGUMENT) ? STDIN : path);
+		if (watch && workingDirectory != null) {
+			fail("--watch cannot be used through a daemon.");
+			return;
+		}
+		if (filePaths.contains(STDIN) && workingDirectory != null) {
+			fail("Standard input cannot be read through a daemon.");
+			return;
+		}
+		if (stdinLanguage != null && MetricsLanguage.forExtension(languageExtension()) == null) {
+			fail("Unknown language '" + stdinLanguage + "'; expected c, cpp or java.");
+			return;
+		}
 		//No argument specified? Print all metrics
 		if (!countLines && !countWords && !countChars && !countCode && !countComments) 			
 			countLines = countWords = countChars = countCode = countComments = calcHalstead = true ;	
 		
+		plan = new MetricsPlan(countLines, countWords, countChars, countCode, countComments, calcHalstead);
 		listHead = new LinkedList<IMetrics>();
+		if (showStats) stats = new MetricsStats(slowestFiles);
 		
-		try { populateMetricsList(filePaths, listHead); }
-		catch (Exception e) { 
-			System.out.println("Error encountered populating list : " + e.getMessage());
-			e.printStackTrace();
-			System.exit(0);
+		//The result cache and resume store are each read at the start and saved whole at the end, so
+		//daemon requests sharing a directory take turns rather than lose each other's updates.
+		Object storeLock = resume || useCache ? STORE_LOCKS.computeIfAbsent(Paths.get(resolve(cacheDirectory)).toAbsolutePath().normalize(), 
+				key -> new Object()) : new Object();
+		synchronized (storeLock) {
+			try { 
+				if (resume) resumeStore = new MetricsResumeStore(Paths.get(resolve(cacheDirectory)), err::println);
+				else if (useCache) {
+					cache = new MetricsCache(Paths.get(resolve(cacheDirectory)), cacheSize, err::println);
+					statIndex = new MetricsStatIndex(Paths.get(resolve(cacheDirectory)));
+				}
+				readOptions = new MetricsReadOptions(readMode, mapThreshold, splitThreshold, resumeStore);
+				if (format != MetricsWriter.Format.TABLE) {
+					writer = new MetricsWriter(out, format, columnNames());
+					writer.header();
+					populateMetricsList(filePaths, this::writeRow);
+					writer.flush();
+				}
+				else if (stream) {
+					minimumColumnWidth = STREAM_COLUMN_WIDTH;
+					printHeader();
+					populateMetricsList(filePaths, this::printRow);
+				}
+				else populateMetricsList(filePaths, listHead::add);
+				if (stats != null) stats.begin(MetricsStats.Phase.SAVE);
+				saveStores();
+				if (stats != null) stats.end();
+			}
+			catch (Exception e) { 
+				fail("Error encountered populating list : " + e.getMessage());
+				e.printStackTrace(err);
+				return;
+			}
 		}
 		
-		gatherFileMetrics(listHead);	
-		printHeader();
-		for (IMetrics lastListItem : listHead) formattedPrint(lastListItem);
-		if (listHead.size() > 1) 
-			formattedPrint(this);
+		if (writer == null && !stream) {
+			//A parallel walk finds files in no fixed order; sort each root's files so every run prints the
+			//same, while the roots, and files named outright, keep the order they were given in.
+			if (stats != null) stats.begin(MetricsStats.Phase.SORT);
+			if (recursive) listHead.sort(Comparator.comparing((IMetrics item) -> rootOf.getOrDefault(item.getPath(), 0)).thenComparing(IMetrics::getPath));
+			if (stats != null) stats.begin(MetricsStats.Phase.PRINT);
+			printHeader();
+			for (IMetrics lastListItem : listHead) formattedPrint(lastListItem);
+			rowCount = listHead.size();
+		}
+		else if (stats != null) stats.begin(MetricsStats.Phase.PRINT); //Rows were printed during analysis
+		if (rowCount > 1 && writer == null) 
+			formattedPrint(totals);
+		if (stats != null) {
+			out.flush();
+			stats.report(err);
+		}
+		if (watch) watch(listHead);
 		}
 	
-	/** Gathers total metrics from specified list.
-	 * @param fileList List of items to iterate over.
+	/** Prints a finished row straight away. Only a watch keeps a copy.
+	 * @param row File metrics.
+	 */
+	private void printRow(IMetrics row) {
+		formattedPrint(row);
+		rowCount++;
+		if (watch) listHead.add(new MetricsResult(row));
+	}
+	
+	/** Writes a finished row in the machine-readable format. Only a watch keeps a copy.
+	 * @param row File metrics.
 	 */
-	private void gatherFileMetrics(LinkedList<IMetrics> fileList) {
-		for (IMetrics lastListItem : fileList) {
-			totalWords += lastListItem.getWordCount();
-			totalChars += lastListItem.getCharacterCount();
-			totalLines += lastListItem.getLineCount();
-			totalCode += lastListItem.getSourceLineCount();
-			totalComments += lastListItem.getCommentLineCount();
-			totalOperators += lastListItem.getHalsteadn2();
-			totalOperands += lastListItem.getHalsteadn1();
-			totalUniqueOperators += lastListItem.getHalsteadN1();
-			totalUniqueOperands += lastListItem.getHalsteadN2();
-			totalEffort  += lastListItem.getHalsteadEffort();
-			totalVocab += lastListItem.getHalsteadVocabulary();
-			totalLength += lastListItem.getHalsteadProgramLength();
-			totalCalcLength  += lastListItem.getHalsteadCalculatedProgramLenght();
-			totalVolume += lastListItem.getHalsteadVolume();
-			totalDifficulty  += lastListItem.getHalsteadDifficulty();
-			totalBugs += lastListItem.getHalsteadBugs();
-			totalTime += lastListItem.getHalsteadTime();
+	private void writeRow(IMetrics row) {
+		writer.startRow(row.getPath());
+		if (countLines) writer.number(row.getLineCount());
+		if (countWords) writer.number(row.getWordCount());
+		if (countChars) writer.number(row.getCharacterCount());
+		if (countCode) writer.number(row.getSourceLineCount());
+		if (countComments) writer.number(row.getCommentLineCount());
+		if (calcHalstead) {
+			writer.number(row.getHalsteadn2());
+			writer.number(row.getHalsteadn1());
+			writer.number(row.getHalsteadN2());
+			writer.number(row.getHalsteadN1());
+			writer.number(row.getHalsteadVocabulary());
+			writer.number(row.getHalsteadProgramLength());
+			writer.number(row.getHalsteadCalculatedProgramLenght());
+			writer.number(row.getHalsteadVolume());
+			writer.number(row.getHalsteadDifficulty());
+			writer.number(row.getHalsteadEffort());
+			writer.number(row.getHalsteadTime());
+			writer.number(row.getHalsteadBugs());
 		}
+		writer.endRow();
+		if (watch) listHead.add(new MetricsResult(row));
+	}
+	
+	/**
+	 * @return Names of the requested columns, in the order rows list them.
+	 */
+	private String[] columnNames() {
+		List<String> names = new ArrayList<String>();
+		if (countLines) names.add(COLUMN_LINES);
+		if (countWords) names.add(COLUMN_WORDS);
+		if (countChars) names.add(COLUMN_CHARS);
+		if (countCode) names.add(COLUMN_SOURCE);
+		if (countComments) names.add(COLUMN_COMMENTS);
+		if (calcHalstead) names.addAll(Arrays.asList(COLUMN_OPERATORS, COLUMN_OPERANDS, COLUMN_UNIQUE_OPERATORS, COLUMN_UNIQUE_OPERANDS,
+				COLUMN_VOCAB, COLUMN_LENGTH, COLUMN_CALC_LENGTH, COLUMN_VOLUME, COLUMN_DIFFICULTY, COLUMN_EFFORT, COLUMN_TIME, COLUMN_BUGS));
+		return names.toArray(new String[names.size()]);
+	}
+	
+	/** Watches the analyzed files, and with -r the trees they came from, until interrupted. Each change
+	 *  re-analyzes just the files involved, swaps their old metrics out of the totals, and prints the
+	 *  changed rows followed by the new total.
+	 * @param analyzed Metrics from the initial run.
+	 */
+	private void watch(LinkedList<IMetrics> analyzed) {
+		MetricsWatcher watcher;
+		try {
+			watcher = new MetricsWatcher(this::analyze, new MetricsWatcher.Listener() {
+				public void changed(IMetrics previous, IMetrics current) {
+					if (previous != null) totals.add(previous, -1);
+					if (current != null) totals.add(current, 1);
+					if (writer != null) {
+						if (current != null) writeRow(current);
+						else writer.deleted(previous.getPath());
+					}
+					else if (current != null) formattedPrint(current);
+					else out.printf(" %s (deleted)%n", previous.getPath());
+				}
+				public void settled() {
+					if (writer != null) writer.flush();
+					else formattedPrint(totals);
+					out.flush();
+					try { saveStores(); }
+					catch (IOException e) { err.println("Could not save cache: " + e.getMessage()); }
+				}
+			}, new MetricsWalker.Filter(includeGlobs, excludeGlobs, extensions), workingDirectory);
+			for (IMetrics item : analyzed) if (!item.getPath().equals(STDIN)) watcher.watchFile(item);
+			if (recursive)
+				for (String root : filePaths) if (new File(resolve(root)).isDirectory()) watcher.watchTree(root);
+		} catch (IOException e) {
+			fail("Could not watch files: " + e.getMessage());
+			return;
+		}
+		out.flush();
+		watcher.run();
 	}
 
-	/** Populates a linkedList of MetricsFileNodes with the given List of filePaths.
+	/** Analyzes the given files, handing each result to the sink in the order the files were given or found.
 	 * @param filePaths List of filePaths.
-	 * @param listHead List of MetricsFileNodes.
+	 * @param sink Receives each file's metrics.
 	 * @throws FileNotFoundException Throws if file not found.
 	 */
-	private void populateMetricsList(List<String> filePaths, LinkedList<IMetrics> listHead) throws FileNotFoundException {
-		for (String current : filePaths) {
-				IMetrics tmp;
-				if (MetricsLib.isSource(current)) tmp = new SourceMetrics();
-				else tmp = new Metrics();
-				tmp.setPath(current);
-				listHead.add(tmp);
-			}	
+	private void populateMetricsList(List<String> filePaths, Consumer<IMetrics> sink) throws FileNotFoundException {
+		int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		MetricsWalker walker = recursive 
+				? new MetricsWalker(filePaths, workingDirectory, new MetricsWalker.Filter(includeGlobs, excludeGlobs, extensions), poolSize, this::fail) 
+				: null;
+		Iterator<String> files = walker == null ? filePaths.iterator() : walker;
+		if (walker != null && writer == null && !stream) {
+			files = new Iterator<String>() { //Rows are collected and sorted; remember which root each file came from
+				public boolean hasNext() { return walker.hasNext(); }
+				public String next() {
+					String file = walker.next();
+					rootOf.putIfAbsent(file, walker.root());
+					return file;
+				}
+			};
+		}
+		if (stats != null) stats.begin(MetricsStats.Phase.ANALYSIS);
+		if ((poolSize == 1 && !virtualThreads) || (!recursive && filePaths.size() < 2)) {
+			while (files.hasNext()) deliver(sink, analyzeCounted(files.next()));
+		}
+		else analyzeConcurrently(files, poolSize, sink);
+		if (stats != null) {
+			stats.end();
+			if (recursive) stats.wall(MetricsStats.Phase.DISCOVERY, walker.walkNanos());
+		}
+	}
+	
+	/** Analyzes files on a work-stealing pool, or one thread per file with --virtual. Files are submitted
+	 *  as soon as the iterator hands them out, and results reach the sink in that same order. At most
+	 *  WINDOW_PER_WORKER results per worker are held back behind an unfinished earlier file; once the
+	 *  window is full, submitting waits for the oldest file, so memory stays bounded however many files there are.
+	 * @param files Paths to analyze.
+	 * @param poolSize Threads in the work-stealing pool.
+	 * @param sink Receives the results in order.
+	 */
+	private void analyzeConcurrently(Iterator<String> files, int poolSize, Consumer<IMetrics> sink) {
+		ExecutorService pool = virtualThreads ? newThreadPerFileExecutor() : new ForkJoinPool(poolSize);
+		Semaphore openFiles = new Semaphore(Math.max(1, maxOpenFiles));
+		int window = WINDOW_PER_WORKER * Math.max(1, virtualThreads ? maxOpenFiles : poolSize);
+		try {
+			ArrayDeque<Future<IMetrics>> pending = new ArrayDeque<Future<IMetrics>>(window);
+			while (files.hasNext()) {
+				if (pending.size() == window) deliver(sink, pending.poll().get());
+				String current = files.next();
+				if (!virtualThreads) pending.add(pool.submit(() -> analyzeCounted(current)));
+				else {
+					openFiles.acquire(); //Taken before the thread starts, so at most maxOpenFiles threads ever exist.
+					pending.add(pool.submit(() -> {
+						try { return analyzeCounted(current); }
+						finally { openFiles.release(); }
+					}));
+				}
+			}
+			while (!pending.isEmpty()) deliver(sink, pending.poll().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while analyzing files", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not analyze file: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/** Virtual threads only exist on Java 21+, so they are looked up reflectively; older JVMs get one
+	 *  ordinary daemon thread per file instead, which still keeps a stalled read from holding up the rest.
+	 * @return An executor that starts a new thread for every task.
+	 */
+	private static ExecutorService newThreadPerFileExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "metrics-file");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+	
+	/** Writes back whichever of the result cache, stat index and resume store are open.
+	 * @throws IOException Throws if a store cannot be written.
+	 */
+	private void saveStores() throws IOException {
+		if (cache != null) {
+			cache.save();
+			statIndex.save();
+		}
+		if (resumeStore != null) resumeStore.save();
+	}
+	
+	/** Reports a problem on err, never among the rows, and makes the run exit 1.
+	 * @param message What went wrong.
+	 */
+	private void fail(String message) {
+		err.println(message);
+		failed = true;
+	}
+	
+	/**
+	 * Hands a result to the sink, unless the file could not be analyzed.
+	 */
+	private static void deliver(Consumer<IMetrics> sink, IMetrics analyzed) {
+		if (analyzed != null) sink.accept(analyzed);
+	}
+	
+	/** Analyzes a file and adds it to the totals straight from the worker that analyzed it. A file that
+	 *  cannot be read is reported on err and left out of the rows and totals, and the run fails at the end.
+	 * @param filePath Path of the file to analyze.
+	 * @return The file's metrics, or null if it could not be analyzed.
+	 */
+	private IMetrics analyzeCounted(String filePath) {
+		long start = stats != null ? System.nanoTime() : 0;
+		IMetrics analyzed;
+		try { analyzed = analyze(filePath); }
+		catch (IllegalArgumentException | UncheckedIOException e) {
+			fail("Could not analyze " + filePath + ": " + e.getMessage());
+			return null;
+		}
+		totals.add(analyzed, 1);
+		if (stats != null) stats.file(filePath, System.nanoTime() - start, filePath.equals(STDIN) ? 0 : new File(resolve(filePath)).length());
+		return analyzed;
+	}
+	
+	/** Returns the file's metrics from the result cache if its contents are unchanged, else analyzes it.
+	 * @param filePath Path of the file to analyze.
+	 * @return The file's metrics.
+	 */
+	private IMetrics analyze(String filePath) {
+		if (filePath.equals(STDIN)) return analyzeStdin();
+		String location = resolve(filePath);
+		IMetrics analyzed;
+		if (cache == null) analyzed = analyzeFile(location);
+		else analyzed = analyzeCached(location);
+		if (location.equals(filePath)) return analyzed;
+		//Report the file under the name it was given
+		MetricsResult result = new MetricsResult(analyzed);
+		result.setPath(filePath);
+		return result;
+	}
+	
+	private IMetrics analyzeCached(String filePath) {
+		MetricsCache.Key key;
+		try { key = cache.key(contentHash(filePath), profileOf(filePath), plan); }
+		catch (IOException e) { return analyzeFile(filePath); } //Let the analysis report the problem
+		IMetrics cached = cache.get(key, filePath);
+		if (cached != null) return cached;
+		IMetrics analyzed = analyzeFile(filePath);
+		cache.put(key, analyzed);
+		return analyzed;
+	}
+	
+	/**
+	 * @return The path to open for a file argument, resolved against the working directory a daemon client gave.
+	 */
+	private String resolve(String filePath) {
+		if (workingDirectory == null) return filePath;
+		return workingDirectory.resolve(filePath).toString();
+	}
+	
+	/** Looks the file's content hash up in the stat index, and only reads and hashes the file if its
+	 *  size, modification time or inode changed since it was indexed.
+	 * @param filePath File to hash.
+	 * @return SHA-1 of the file's contents.
+	 * @throws IOException Throws if the file cannot be stat'ed or read.
+	 */
+	private byte[] contentHash(String filePath) throws IOException {
+		MetricsStatIndex.Stat stat = MetricsStatIndex.stat(filePath);
+		byte[] hash = statIndex.lookup(filePath, stat);
+		if (hash == null) {
+			hash = MetricsCache.contentHash(filePath);
+			statIndex.record(filePath, stat, hash);
+		}
+		return hash;
+	}
+	
+	/**
+	 * @return Name of the language profile the plan analyzes the file with, or "text".
+	 */
+	private String profileOf(String filePath) {
+		MetricsLanguage language = MetricsLanguage.forExtension(MetricsLib.getFileExtension(filePath));
+		return plan.needsCodeNode() && language != null ? language.name : "text";
+	}
+	
+	/** Builds the metrics object the plan calls for and analyzes the file. Source files only get
+	 *  a SourceMetrics if a source-only column was asked for.
+	 * @param filePath Path of the file to analyze.
+	 * @return The analyzed metrics.
+	 */
+	private IMetrics analyzeFile(String filePath) {
+		IMetrics tmp;
+		if (plan.needsCodeNode() && MetricsLib.isSource(filePath)) tmp = new SourceMetrics(plan, readOptions);
+		else tmp = new Metrics(plan, readOptions);
+		tmp.setPath(filePath);
+		return tmp;
 	}
 
+	/** Counts standard input to its end. The input is read straight from file descriptor 0 through one
+	 *  fixed buffer, so a pipe of any size costs the same memory and nothing is spooled to disk.
+	 * @return Metrics of the input, as a SourceMetrics if --lang was given and a source column was asked for.
+	 */
+	private IMetrics analyzeStdin() {
+		Metrics metrics = stdinLanguage != null && plan.needsCodeNode() ? new SourceMetrics(plan) : new Metrics(plan);
+		metrics.setStream(new FileInputStream(FileDescriptor.in).getChannel(), STDIN, stdinLanguage != null ? languageExtension() : "");
+		return metrics;
+	}
+	
+	/**
+	 * @return The --lang value as an extension, e.g. ".java".
+	 */
+	private String languageExtension() {
+		return stdinLanguage.startsWith(".") ? stdinLanguage : "." + stdinLanguage;
+	}
+	
 	/**
 	 * Prints output header.
 	 */
 	private void printHeader() {
-		if (countLines) printHeader(COLUMN_LINES, totalLines);
-		if (countWords) printHeader(COLUMN_WORDS, totalWords);
-		if (countChars) printHeader(COLUMN_CHARS, totalChars);
-		if (countCode)  printHeader(COLUMN_SOURCE, totalCode);
-		if (countComments) printHeader(COLUMN_COMMENTS, totalComments);
+		if (countLines) printHeader(COLUMN_LINES, totals.getLineCount());
+		if (countWords) printHeader(COLUMN_WORDS, totals.getWordCount());
+		if (countChars) printHeader(COLUMN_CHARS, totals.getCharacterCount());
+		if (countCode)  printHeader(COLUMN_SOURCE, totals.getSourceLineCount());
+		if (countComments) printHeader(COLUMN_COMMENTS, totals.getCommentLineCount());
 		if (calcHalstead) {
-			printHeader(COLUMN_OPERATORS, totalOperators);	
-			printHeader(COLUMN_OPERANDS, totalOperands);	
-			printHeader(COLUMN_UNIQUE_OPERATORS, totalUniqueOperators);	
-			printHeader(COLUMN_UNIQUE_OPERANDS, totalUniqueOperands);	
+			printHeader(COLUMN_OPERATORS, totals.getHalsteadn2());	
+			printHeader(COLUMN_OPERANDS, totals.getHalsteadn1());	
+			printHeader(COLUMN_UNIQUE_OPERATORS, totals.getHalsteadN2());	
+			printHeader(COLUMN_UNIQUE_OPERANDS, totals.getHalsteadN1());	
 		
-			printHeader(COLUMN_VOCAB, totalVocab);	
-			printHeader(COLUMN_LENGTH, totalLength);	
-			printHeader(COLUMN_CALC_LENGTH, totalCalcLength);	
-			printHeader(COLUMN_VOLUME, totalVolume);	
-			printHeader(COLUMN_DIFFICULTY, totalDifficulty);	
-			printHeader(COLUMN_EFFORT, totalEffort);	
-			printHeader(COLUMN_TIME, totalTime);	
-			printHeader(COLUMN_BUGS, totalBugs);	
+			printHeader(COLUMN_VOCAB, totals.getHalsteadVocabulary());	
+			printHeader(COLUMN_LENGTH, totals.getHalsteadProgramLength());	
+			printHeader(COLUMN_CALC_LENGTH, totals.getHalsteadCalculatedProgramLenght());	
+			printHeader(COLUMN_VOLUME, totals.getHalsteadVolume());	
+			printHeader(COLUMN_DIFFICULTY, totals.getHalsteadDifficulty());	
+			printHeader(COLUMN_EFFORT, totals.getHalsteadEffort());	
+			printHeader(COLUMN_TIME, totals.getHalsteadTime());	
+			printHeader(COLUMN_BUGS, totals.getHalsteadBugs());	
 		}
-		System.out.printf(" %-20s%n", "filename");
+		out.printf(" %-20s%n", "filename");
 	}
 
 	
 	/**
 	 * Master print method, used for printing individual node metrics as well as the total.
 	 */
-	private void formattedPrint(Integer lines, Integer words, Integer chars, Integer linesCode, Integer linesComment, 
-						Integer operators, Integer operands, Integer uniqueOperators, Integer uniqueOperands,
-						Integer vocab, Integer length, Integer totalCalcLength, Integer volume, Integer difficulty, Integer effort,
-						Integer bugs, Integer time,
+	private void formattedPrint(long lines, long words, long chars, long linesCode, long linesComment, 
+						long operators, long operands, long uniqueOperators, long uniqueOperands,
+						long vocab, long length, long totalCalcLength, long volume, long difficulty, long effort,
+						long bugs, long time,
 						String filename) {
 		if (countLines) printMetric(COLUMN_LINES, lines);
 		if (countWords) printMetric(COLUMN_WORDS, words);
@@ -197,7 +701,7 @@ public class MetricsApp implements Runnable{
 			printCodeMetric(COLUMN_BUGS, bugs);
 			
 		}
-		System.out.printf(" %s%n", filename);
+		out.printf(" %s%n", filename);
 	}
 
 	/** Abstraction method for neatness.
@@ -225,35 +729,24 @@ public class MetricsApp implements Runnable{
 	}
 	
 	
-	/** Abstraction method for neatness. Used for printing totals.
-	 * @param toPrint Metrics object whose totals are to be printed.
-	 */
-	private void formattedPrint(MetricsApp toPrint) {
-		formattedPrint(toPrint.totalLines, toPrint.totalWords, toPrint.totalChars, toPrint.totalCode, toPrint.totalComments, 
-				toPrint.totalOperators, toPrint.totalOperands, toPrint.totalUniqueOperators, toPrint.totalUniqueOperands,
-				toPrint.totalVocab, toPrint.totalLength, toPrint.totalCalcLength, toPrint.totalVolume, toPrint.totalDifficulty, 
-				toPrint.totalEffort, toPrint.totalBugs, toPrint.totalTime,
-				"total" );
-}
-	
 	/** Printing helper method for managing column width.
 	 * @param minimumWidth Narrowest column width returnable, usually the label width
-	 * @param totalToMeasure Integer in column
+	 * @param totalToMeasure Number in column
 	 * @return
 	 */
-	private int getColumnWidth(int minimumWidth, int totalToMeasure) {		
-		return Math.max(new Integer(totalToMeasure).toString().length(), minimumWidth) + COLUMN_SEP_WIDTH;
+	private int getColumnWidth(int minimumWidth, long totalToMeasure) {		
+		return Math.max(Math.max(Long.toString(totalToMeasure).length(), minimumWidth), minimumColumnWidth) + COLUMN_SEP_WIDTH;
 	}
 	
-	private void printHeader(String columnName, int metricTotal) {
-		System.out.printf("%"+ getColumnWidth(columnName.length() , metricTotal) +"s", columnName);
+	private void printHeader(String columnName, long metricTotal) {
+		out.printf("%"+ getColumnWidth(columnName.length() , metricTotal) +"s", columnName);
 	}
-	private void printMetric(String columnName, int metric) {
-		System.out.printf("%"+ getColumnWidth(columnName.length(), metric) + "s", new Integer(metric).toString());
+	private void printMetric(String columnName, long metric) {
+		out.printf("%"+ getColumnWidth(columnName.length(), metric) + "s", Long.toString(metric));
 	}
 
-	private void printCodeMetric(String columnName, int metric) {
-		System.out.printf("%"+ getColumnWidth(columnName.length(), metric) + "s", metric > 0 ? new Integer(metric).toString() : "");
+	private void printCodeMetric(String columnName, long metric) {
+		out.printf("%"+ getColumnWidth(columnName.length(), metric) + "s", metric > 0 ? Long.toString(metric) : "");
 	}
 
 }
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import picocli.CommandLine;
+import picocli.CommandLine.*;
+
+/*	MetricsBench.java
+*
+*	Throughput harness for the counting hot paths, run as its own entry point:
+*		java MetricsBench [--size=<bytes>,...] [--line=<chars>,...] [--lang=<language>,...]
+*
+*	Every benchmark runs over an in-memory buffer built from a seed file (hamlet.txt for text,
+*	test.c for source), rewrapped to the requested line length and repeated to the requested size,
+*	so the numbers measure counting and not the disk. Each case is warmed up, then timed over
+*	several iterations; the report gives the median throughput in MB/s and the bytes allocated
+*	per iteration and per second of work, read from the JVM's per-thread allocation counter.
+*/
+@Command(description="Benchmarks the counting, comment classification and Halstead stages.", name="MetricsBench")
+public class MetricsBench implements Runnable {
+	private static final double MB = 1 << 20;
+
+	/** The stages a benchmark exercises. */
+	enum Stage { LINES, TEXT, COMMENTS, HALSTEAD }
+
+	@Option(description = "Benchmarks to run: ${COMPLETION-CANDIDATES} (default: all)", names = {"--bench"}, split = ",", paramLabel="<bench>")
+	List<Stage> stages;
+
+	@Option(description = "Input sizes in bytes (default: 1048576,16777216)", names = {"--size"}, split = ",", paramLabel="<bytes>")
+	long[] sizes = { 1L << 20, 16L << 20 };
+
+	@Option(description = "Line lengths the seed is rewrapped to, 0 to keep its own lines (default: 0,120)", names = {"--line"}, split = ",", paramLabel="<chars>")
+	int[] lineLengths = { 0, 120 };
+
+	@Option(description = "Languages for the source benchmarks: c, cpp or java (default: c,java)", names = {"--lang"}, split = ",", paramLabel="<language>")
+	String[] languages = { "c", "java" };
+
+	@Option(description = "Untimed iterations per case (default: 5)", names = {"--warmup"}, paramLabel="<n>")
+	int warmup = 5;
+
+	@Option(description = "Timed iterations per case (default: 10)", names = {"--iterations"}, paramLabel="<n>")
+	int iterations = 10;
+
+	@Option(description = "Seed for the text benchmarks (default: hamlet.txt)", names = {"--text-seed"}, paramLabel="<file>")
+	String textSeed = "hamlet.txt";
+
+	@Option(description = "Seed for the source benchmarks (default: test.c)", names = {"--source-seed"}, paramLabel="<file>")
+	String sourceSeed = "test.c";
+
+	private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private long sink; //Keeps results alive so the JIT cannot drop the work
+
+	public static void main(String[] args) {
+		CommandLine.run(new MetricsBench(), args);
+	}
+
+	public void run() {
+		byte[] text, source;
+		try {
+			text = Files.readAllBytes(Paths.get(textSeed));
+			source = Files.readAllBytes(Paths.get(sourceSeed));
+		} catch (IOException e) {
+			System.err.println("Could not read seed file: " + e.getMessage());
+			return;
+		}
+		System.out.printf("%-9s %-5s %11s %6s %10s %14s %12s%n", "bench", "lang", "bytes", "line", "MB/s", "alloc B/iter", "alloc MB/s");
+		for (Stage stage : stages != null ? stages : Arrays.asList(Stage.values())) {
+			boolean code = stage == Stage.COMMENTS || stage == Stage.HALSTEAD;
+			for (String language : code ? languages : new String[] { "text" }) {
+				for (int lineLength : lineLengths) {
+					for (long size : sizes) {
+						ByteBuffer input = ByteBuffer.wrap(corpus(code ? source : text, lineLength, size));
+						report(stage, language, lineLength, input);
+					}
+				}
+			}
+		}
+		if (sink == 42) System.out.println();
+	}
+
+	/** Times one case and prints its line of the report.
+	 * @param input Bytes to count, between position 0 and the limit.
+	 */
+	private void report(Stage stage, String language, int lineLength, ByteBuffer input) {
+		long thread = Thread.currentThread().getId();
+		for (int i = 0; i < warmup; i++) sink += count(stage, language, input);
+		long[] nanos = new long[iterations];
+		long allocated = threads.getThreadAllocatedBytes(thread), total = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			sink += count(stage, language, input);
+			nanos[i] = System.nanoTime() - start;
+			total += nanos[i];
+		}
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+		Arrays.sort(nanos);
+		double seconds = nanos[iterations / 2] / 1e9;
+		System.out.printf(Locale.ROOT, "%-9s %-5s %11d %6s %10.1f %14d %12.1f%n", stage.name().toLowerCase(Locale.ROOT), language, input.limit(),
+				lineLength == 0 ? "seed" : Integer.toString(lineLength), input.limit() / MB / seconds,
+				allocated / iterations, allocated / MB / (total / 1e9));
+	}
+
+	/** Runs one iteration: a fresh node over the whole buffer, as a file of that size would get.
+	 * @return A figure from the result, for the sink.
+	 */
+	private static long count(Stage stage, String language, ByteBuffer input) {
+		switch (stage) {
+			case LINES:
+			case TEXT: {
+				MetricsScanner scanner = new MetricsScanner(stage == Stage.LINES);
+				scanner.scan(input);
+				scanner.finish();
+				return scanner.lines + scanner.words;
+			}
+			default: {
+				MetricsPlan plan = new MetricsPlan(true, false, false, true, true, stage == Stage.HALSTEAD);
+				MetricsCodeNode node = new MetricsCodeNode("." + language, plan);
+				node.consume(input);
+				node.finish();
+				return node.linesOfCode + node.effort;
+			}
+		}
+	}
+
+	/** Builds the benchmark input from a seed.
+	 * @param seed Bytes of the seed file.
+	 * @param lineLength Rewrap the seed's words into lines of about this many chars, 0 to keep its lines.
+	 * @param size Bytes to produce; the seed is repeated as often as needed and the last copy cut short.
+	 * @return The input.
+	 */
+	static byte[] corpus(byte[] seed, int lineLength, long size) {
+		if (lineLength > 0) {
+			StringBuilder wrapped = new StringBuilder();
+			int column = 0;
+			for (String word : new String(seed, StandardCharsets.ISO_8859_1).split("[ \t\r\n]+")) {
+				if (word.isEmpty()) continue;
+				if (column > 0 && column + 1 + word.length() > lineLength) {
+					wrapped.append('\n');
+					column = 0;
+				}
+				if (column > 0) {
+					wrapped.append(' ');
+					column++;
+				}
+				wrapped.append(word);
+				column += word.length();
+			}
+			seed = wrapped.append('\n').toString().getBytes(StandardCharsets.ISO_8859_1);
+		}
+		if (size > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Benchmark inputs are held in one array; use at most 2GB");
+		byte[] out = new byte[(int) size];
+		for (int i = 0; i < out.length; i += seed.length) System.arraycopy(seed, 0, out, i, Math.min(seed.length, out.length - i));
+		return out;
+	}
+}
@@ -0,0 +1,207 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/*	MetricsCache.java
+*
+*	On-disk store of finished results, keyed by a SHA-1 over the file's contents, the analyzer
+*	version, the language profile and the requested columns. An unchanged file is therefore never
+*	analyzed twice, whatever its path or timestamp.
+*
+*	The whole store is one binary file, loaded into memory when a run starts and rewritten at the
+*	end through a temporary file and an atomic rename, so an interrupted or concurrent run can never
+*	leave a torn store behind. Every entry remembers the last run that used it; when the store
+*	outgrows its size budget the entries unused for longest are dropped.
+*
+*	File layout: magic, format, run count, entry count, then per entry a 20-byte key,
+*	the run that last used it, and the MetricsResult figures.
+*/
+class MetricsCache {
+	//Bump whenever a counting rule changes, so results from an older analyzer are never served.
+	static final int ANALYZER_VERSION = 1;
+	private static final int MAGIC = 0x4D435243, FORMAT = 2; //"MCRC"
+	private static final int KEY_LENGTH = 20, ENTRY_SIZE = KEY_LENGTH + 4 + 1 + 17 * 8;
+	private static final String STORE_NAME = "results.bin";
+	private static final int BUFFER_SIZE = 1 << 16;
+	
+	private final Path store;
+	private final long maxEntries;
+	private final Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+	private final int run;
+	private volatile boolean dirty;
+	
+	/** Opens the store in the given directory, creating it if needed. A missing or unreadable store starts out empty.
+	 * @param directory Directory that holds the store.
+	 * @param maxBytes Size budget of the store file.
+	 * @param warnings Told when an unreadable store is ignored.
+	 * @throws IOException Throws if the directory cannot be created.
+	 */
+	MetricsCache(Path directory, long maxBytes, Consumer<String> warnings) throws IOException {
+		Files.createDirectories(directory);
+		store = directory.resolve(STORE_NAME);
+		maxEntries = Math.max(1, maxBytes / ENTRY_SIZE);
+		run = load(warnings) + 1;
+	}
+	
+	/** Hashes a file's contents.
+	 * @param filePath File to hash.
+	 * @return SHA-1 of the file's bytes.
+	 * @throws IOException Throws if the file cannot be read.
+	 */
+	static byte[] contentHash(String filePath) throws IOException {
+		MessageDigest digest = newDigest();
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			while (channel.read(buffer) > -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return digest.digest();
+	}
+	
+	/** Derives the cache key of a file.
+	 * @param contentHash SHA-1 of the file's contents.
+	 * @param profile Name of the language profile the file is analyzed with, or "text".
+	 * @param plan Columns being computed.
+	 * @return The key.
+	 */
+	Key key(byte[] contentHash, String profile, MetricsPlan plan) {
+		MessageDigest digest = newDigest();
+		digest.update(contentHash);
+		digest.update(ByteBuffer.allocate(8).putInt(ANALYZER_VERSION).putInt(plan.stages()).array());
+		digest.update(profile.getBytes(StandardCharsets.UTF_8));
+		return new Key(digest.digest());
+	}
+	
+	/**
+	 * @return The stored result reported under the given path, or null on a miss.
+	 */
+	IMetrics get(Key key, String filePath) {
+		Entry entry = entries.get(key);
+		if (entry == null) return null;
+		if (entry.lastUsed != run) {
+			entry.lastUsed = run;
+			dirty = true;
+		}
+		return copyAs(entry.result, filePath);
+	}
+	
+	void put(Key key, IMetrics metrics) {
+		entries.put(key, new Entry(new MetricsResult(metrics), run));
+		dirty = true;
+	}
+	
+	/** Writes the store back if anything changed, evicting the least recently used entries beyond the size budget.
+	 * @throws IOException Throws if the store cannot be written.
+	 */
+	void save() throws IOException {
+		if (!dirty) return;
+		List<Map.Entry<Key, Entry>> kept = new ArrayList<Map.Entry<Key, Entry>>(entries.entrySet());
+		if (kept.size() > maxEntries) {
+			kept.sort((a, b) -> Integer.compare(b.getValue().lastUsed, a.getValue().lastUsed));
+			kept = kept.subList(0, (int) maxEntries);
+		}
+		Path temporary = Files.createTempFile(store.getParent(), STORE_NAME, ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT);
+				out.writeInt(run);
+				out.writeInt(kept.size());
+				for (Map.Entry<Key, Entry> entry : kept) {
+					out.write(entry.getKey().bytes);
+					out.writeInt(entry.getValue().lastUsed);
+					entry.getValue().result.write(out);
+				}
+			}
+			Files.move(temporary, store, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+		dirty = false;
+	}
+	
+	/**
+	 * @return The run count stored with the entries, 0 if there was no usable store.
+	 */
+	private int load(Consumer<String> warnings) {
+		try (InputStream file = Files.newInputStream(store);
+			 DataInputStream in = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT) return 0;
+			int lastRun = in.readInt(), count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				byte[] key = new byte[KEY_LENGTH];
+				in.readFully(key);
+				int lastUsed = in.readInt();
+				entries.put(new Key(key), new Entry(MetricsResult.read(in, null), lastUsed));
+			}
+			return lastRun;
+		} catch (NoSuchFileException e) {
+			return 0;
+		} catch (IOException e) {
+			warnings.accept("Ignoring unreadable result cache " + store + ": " + e.getMessage());
+			entries.clear();
+			return 0;
+		}
+	}
+	
+	private static MetricsResult copyAs(MetricsResult result, String filePath) {
+		MetricsResult copy = new MetricsResult(result);
+		copy.setPath(filePath);
+		return copy;
+	}
+	
+	private static MessageDigest newDigest() {
+		try { return MessageDigest.getInstance("SHA-1"); }
+		catch (NoSuchAlgorithmException e) { throw new IllegalStateException("SHA-1 is not available", e); }
+	}
+	
+	/** A 20-byte cache key with value equality. */
+	static final class Key {
+		private final byte[] bytes;
+		private final int hash;
+		
+		Key(byte[] bytes) {
+			this.bytes = bytes;
+			hash = Arrays.hashCode(bytes);
+		}
+		public boolean equals(Object other) {
+			return other instanceof Key && Arrays.equals(bytes, ((Key) other).bytes);
+		}
+		public int hashCode() {
+			return hash;
+		}
+	}
+	
+	private static final class Entry {
+		final MetricsResult result;
+		volatile int lastUsed;
+		
+		Entry(MetricsResult result, int lastUsed) {
+			this.result = result;
+			this.lastUsed = lastUsed;
+		}
+	}
+}
@@ -1,133 +1,265 @@
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-public class MetricsCodeNode extends MetricsFileNode {
-	private boolean currentlyBlockComment;
+public class MetricsCodeNode extends MetricsFileNode implements MetricsLexer.TokenSink {
+	//States of the comment/string machine. SLASH and BLOCK_STAR hold a '/' or '*' until the next character decides it.
+	private static final int CODE = 0, SLASH = 1, LINE_COMMENT = 2, BLOCK_COMMENT = 3, BLOCK_STAR = 4,
+							STRING = 5, STRING_ESCAPE = 6, CHAR = 7, CHAR_ESCAPE = 8;
+	private int state = CODE;
+	private boolean lineHasCode, lineHasComment, lineOpen, lastCarriageReturn;
+	private final boolean tokenize;	//False when Halstead metrics were not asked for
 	
-	int linesOfCode, linesOfComment, nodeTotalOperators, nodeTotalOperands,
+	long linesOfCode, linesOfComment, nodeTotalOperators, nodeTotalOperands,
 		vocabulary, length, calcLength, volume, difficulty, effort, time, bugs;
-	Set<String> uniqueOperators = new HashSet<String>(), uniqueOperands = new HashSet<String>();
+	MetricsIntSet uniqueOperators = new MetricsIntSet(), uniqueOperands = new MetricsIntSet();	// symbol ids
+	private final MetricsSymbolTable symbols = new MetricsSymbolTable();
+	private final MetricsLanguage language;
+	private final MetricsLexer lexer;
+	private final int[] operatorSymbols;	// lexer operator id -> symbol id, -1 until first seen
+	private final MetricsEvents.CommentClassification classification = new MetricsEvents.CommentClassification();
 	
 	public MetricsCodeNode(File toCount) {
-		super(toCount);	
+		this(toCount, MetricsPlan.FULL);
 	}
-	protected void getFileMetrics() {
-		super.getFileMetrics();
-		deriveHalsteads();
+	public MetricsCodeNode(File toCount, MetricsPlan plan) {
+		this(toCount, plan, MetricsReadOptions.DEFAULT);
+	}
+	public MetricsCodeNode(File toCount, MetricsPlan plan, MetricsReadOptions options) {
+		super(toCount, plan, options);
+		tokenize = plan.needsTokens();
+		language = MetricsLanguage.forExtension(ext);
+		if (language == null) throw new IllegalArgumentException("'" + file.getName() + "' is not a recognized source file");
+		lexer = new MetricsLexer(language.operators, this);
+		operatorSymbols = new int[language.operators.size()];
+		Arrays.fill(operatorSymbols, -1);
+	}
+	/** Node for a stream of source code, counted with getStreamMetrics().
+	 * @param extension Extension naming the stream's language, e.g. ".java".
+	 * @param plan Stages to run.
+	 */
+	public MetricsCodeNode(String extension, MetricsPlan plan) {
+		super(extension, plan);
+		tokenize = plan.needsTokens();
+		language = MetricsLanguage.forExtension(ext);
+		if (language == null) throw new IllegalArgumentException("'" + extension + "' is not a recognized source language");
+		lexer = new MetricsLexer(language.operators, this);
+		operatorSymbols = new int[language.operators.size()];
+		Arrays.fill(operatorSymbols, -1);
+	}
+	
+	/**
+	 * Comment state runs from line to line, so code files are always read front to back.
+	 */
+	protected boolean isSplittable() {
+		return false;
+	}
+	
+	/**
+	 * The Halstead sets would have to be saved too, so only line counting resumes; with -H the file is read again.
+	 */
+	protected boolean isResumable() {
+		return !tokenize;
+	}
+	
+	protected void saveState(DataOutput out) throws IOException {
+		super.saveState(out);
+		out.writeByte(state);
+		out.writeByte((lineHasCode ? 1 : 0) | (lineHasComment ? 2 : 0) | (lineOpen ? 4 : 0) | (lastCarriageReturn ? 8 : 0));
+		out.writeLong(linesOfCode);
+		out.writeLong(linesOfComment);
+	}
+	
+	protected void restoreState(DataInput in) throws IOException {
+		super.restoreState(in);
+		state = in.readByte();
+		int flags = in.readByte();
+		lineHasCode = (flags & 1) != 0;
+		lineHasComment = (flags & 2) != 0;
+		lineOpen = (flags & 4) != 0;
+		lastCarriageReturn = (flags & 8) != 0;
+		linesOfCode = in.readLong();
+		linesOfComment = in.readLong();
+	}
+	
+	/**
+	 * Runs every byte of the buffer through the comment/string state machine. Lines break the same
+	 * way readLine() broke them (LF, CR or CR LF), and state carries over from one buffer to the next.
+	 */
+	protected void consume(ByteBuffer buffer) {
+		super.consume(buffer);
+		boolean recorded = classification.isEnabled();
+		long started = 0;
+		if (recorded) {
+			if (classification.bytes == 0) classification.begin();
+			classification.bytes += buffer.remaining();
+			started = System.nanoTime();
+		}
+		for (int i = buffer.position(), end = buffer.limit(); i < end; i++) {
+			int c = buffer.get(i) & 0xFF;
+			if (c == '\n' || c == '\r') {
+				if (c == '\r' || !lastCarriageReturn) endLine();
+				lastCarriageReturn = c == '\r';
+				continue;
+			}
+			lastCarriageReturn = false;
+			lineOpen = true;
+			step(c);
+		}
+		if (recorded) classification.scanTime += System.nanoTime() - started;
+	}
+	
+	protected void finish() {
+		super.finish();
+		if (lineOpen) endLine();
+		if (classification.bytes > 0 && classification.isEnabled()) { //Begun by the first buffer; an empty file never had one
+			classification.end();
+			if (classification.shouldCommit()) {
+				classification.path = eventPath();
+				classification.sourceLines = linesOfCode;
+				classification.commentLines = linesOfComment;
+				classification.tokenized = tokenize;
+				classification.commit();
+			}
+		}
+		if (tokenize) {
+			MetricsEvents.Halstead event = new MetricsEvents.Halstead();
+			event.begin();
+			deriveHalsteads();
+			event.end();
+			if (event.shouldCommit()) {
+				event.path = eventPath();
+				event.operators = nodeTotalOperators;
+				event.operands = nodeTotalOperands;
+				event.uniqueOperators = uniqueOperators.size();
+				event.uniqueOperands = uniqueOperands.size();
+				event.effort = effort;
+				event.commit();
+			}
+		}
 	}
 	
-	protected void getLineMetrics(String line) {
-		super.getLineMetrics(line);
-		getCodeLineMetrics(line);
+	/**
+	 * @return The file's path for flight recorder events, or "-" for a stream.
+	 */
+	private String eventPath() {
+		return file != null ? file.getPath() : "-";
 	}
 	
-	private void getCodeLineMetrics(String line) {
-		String codeLine = "";
-		//Count code and Comments
-		if (currentlyBlockComment && !line.contains("*/")) linesOfComment++; 
-			else if (line.contains("/*")) { //Does this line have a self-contained comment /*like this*/
-				linesOfComment++; 		
-				String before = line.substring(0, line.indexOf('*') - 1).trim(),
-						after = "";
-				if (line.contains("*/")) {
-					after = line.substring(line.lastIndexOf("*/") + 2).trim();
-				} else currentlyBlockComment = true;
-				if (before.length() > 1) { 
-					linesOfCode++; //Are there contents before the comment?
-					codeLine = before;
+	/** Advances the state machine by one character that is not a line break.
+	 * @param c Next character, as an unsigned byte.
+	 */
+	@SuppressWarnings("fallthrough") //SLASH that turns out to be division handles c as CODE
+	private void step(int c) {
+		switch (state) {
+			case SLASH:
+				if (c == '/' || c == '*') {
+					if (tokenize) lexer.end();
+					lineHasComment = true;
+					state = c == '/' ? LINE_COMMENT : BLOCK_COMMENT;
+					return;
+				}
+				if (tokenize) lexer.feed('/'); //Plain division after all
+				lineHasCode = true;
+				state = CODE;
+				//fall through
+			case CODE:
+				if (c == '/') state = SLASH;
+				else if (c == '"' || c == '\'') {
+					if (tokenize) lexer.end();
+					if (tokenize) lexer.literal(c);
+					lineHasCode = true;
+					state = c == '"' ? STRING : CHAR;
 				}
-				else if (after.length() > 2) {
-					codeLine = after;
-					linesOfCode++; //Are there contents after the comment?
+				else {
+					if (c > ' ') lineHasCode = true;
+					if (tokenize) lexer.feed(c);
 				}
-		} else if (line.contains("*/")) {
-				linesOfComment++;
-				currentlyBlockComment = false;
-				String after = line.substring(line.lastIndexOf("*/") + 2).trim();
-				if (after.length() > 2) {
-					codeLine = after;
-					linesOfCode++; //Are there contents after the comment?
+				return;
+			case LINE_COMMENT:
+				return;
+			case BLOCK_COMMENT:
+				if (c == '*') state = BLOCK_STAR;
+				return;
+			case BLOCK_STAR:
+				if (c == '/') state = CODE;
+				else if (c != '*') state = BLOCK_COMMENT;
+				return;
+			case STRING:
+			case CHAR:
+				if (tokenize) lexer.literal(c);
+				if (c == '\\') state = state == STRING ? STRING_ESCAPE : CHAR_ESCAPE;
+				else if (c == (state == STRING ? '"' : '\'')) {
+					if (tokenize) lexer.end(); //The whole literal is one operand
+					state = CODE;
 				}
+				return;
+			case STRING_ESCAPE:
+			case CHAR_ESCAPE:
+				if (tokenize) lexer.literal(c);
+				state = state == STRING_ESCAPE ? STRING : CHAR;
+				return;
 		}
-		else if (line.contains("//")) {
-			linesOfComment++;
-			String before = line.substring(0, line.indexOf("//")).trim();
-					
-			if (before.length() > 1) {
-				codeLine = before;
-				linesOfCode++;
-			}
-		} else  {
-			linesOfCode++;	
-			codeLine = line;
+	}
+	
+	/**
+	 * Settles the state at a line break and counts the line as source and/or comment.
+	 */
+	private void endLine() {
+		switch (state) {
+			case SLASH:
+				if (tokenize) lexer.feed('/');
+				lineHasCode = true;
+				state = CODE;
+				break;
+			case LINE_COMMENT:
+			case STRING:
+			case CHAR:
+				state = CODE; //Comments end at the line, and so do unterminated literals
+				break;
+			case BLOCK_STAR:
+				state = BLOCK_COMMENT;
+				break;
+			case STRING_ESCAPE:
+			case CHAR_ESCAPE:
+				state = state == STRING_ESCAPE ? STRING : CHAR; //Backslash-newline continues the literal
+				break;
 		}
-
-		if (!currentlyBlockComment && codeLine.length() > 1) {
-			Set<String> excludedOperands = new HashSet<String>(), includedOperators = new HashSet<String>();
-			String operatorsRegex;
-			String operandsRegex;
-			switch (ext) {
-				case ".java" :
-				case ".javah" : 
-					excludedOperands = MetricsLib.javaExcludedOperands;
-					includedOperators = MetricsLib.javaIncludedOperators;
-					break;
-				case ".c":
-				case ".h":
-					excludedOperands = MetricsLib.cExcludedOperands;
-					includedOperators = MetricsLib.cIncludedOperators;
-					break;
-				case ".cpp":
-				case ".hpp":
-					excludedOperands = MetricsLib.cppExcludedOperands;
-					includedOperators = MetricsLib.cppIncludedOperators;
-					break;
-			}
-			operatorsRegex = "(=)|(>)|(<)|(!)|(~)|(/?)|(:)|(==)|(<=)|(>=)|(!=)|(&&)|(/|/|)|(/+/+)|(--)|(/+)|(-)|(/*)|(/)|(&)|(/|)|(^)|(%)|(<<)|(>>)|(>>>)|(/+=)|(-=)|(/*=)|(/=)|(&=)|(/|=)|(^=)|(%=)|(<<=)|(>>=)|(>>>=)";
-		    //Keywords and ops regex shamelessly borrowed from https://www.daniweb.com/programming/software-development/threads/307653/halstead-metrics
-		    operandsRegex = "(\\w+)|(\\d+)";
-		
-		    Matcher operatorsMatcher = Pattern.compile(operatorsRegex).matcher(codeLine);
-		    Matcher operandsMatcher = Pattern.compile(operandsRegex).matcher(codeLine);
-		
-			  while (operatorsMatcher.find()) {
-				  	String group = operatorsMatcher.group();
-				  	if (group.length() > 0) {
-				       uniqueOperators.add(group);
-				       nodeTotalOperators++;
-				  	}
-			   }
-			  while (operandsMatcher.find()) {
-				   String group = operandsMatcher.group();
-				   if (group.length() == 0) continue;
-				   else if (includedOperators.contains(group)) {
-					   uniqueOperators.add(group);
-					   nodeTotalOperators++;
-				   }
-				   else if (!excludedOperands.contains(group)) { // per doc referenced in Design, reserved words are not operands for H-metrics
-				       uniqueOperands.add(group);
-				       nodeTotalOperands++;
-				  	}
-			   }
+		if (tokenize && state != STRING && state != CHAR) lexer.end();
+		if (lineHasCode) linesOfCode++;
+		if (lineHasComment) linesOfComment++;
+		lineHasCode = false;
+		lineHasComment = state == BLOCK_COMMENT;
+		lineOpen = false;
+	}
 	
-<<<<<<< HEAD
-			//	System.out.println(	"Code: " + codeLine + 
-				//		"\n	Operators: " + uniqueOperators.toString() + 
-				  //   	"\n	Operands: " + uniqueOperands.toString());
-=======
-				//System.out.println(	"Code: " + codeLine + 
-				//		"\n	Operators: " + uniqueOperators.toString() + 
-				//     	"\n	Operands: " + uniqueOperands.toString());
->>>>>>> 0ce06ce6237a555831f5378042c7339ae83d5654
+		public void operator(int operatorId) {
+			int symbol = operatorSymbols[operatorId];
+			if (symbol < 0) symbol = operatorSymbols[operatorId] = symbols.intern(language.operators.operator(operatorId));
+			uniqueOperators.add(symbol);
+			nodeTotalOperators++;
+		}
+		
+		public void operand(char[] text, int length) {
+			int keyword = language.keyword(text, length);
+			if (keyword < 0) {
+				uniqueOperands.add(symbols.intern(text, length));
+				nodeTotalOperands++;
 			}
+			else if (language.isOperator(keyword)) {
+				uniqueOperators.add(symbols.intern(text, length));
+				nodeTotalOperators++;
+			}
+			// otherwise a reserved word: per doc referenced in Design, reserved words are not operands for H-metrics
 		}
+		
 		private void deriveHalsteads() {
 			vocabulary = uniqueOperators.size() + uniqueOperands.size();
 			length = nodeTotalOperators + nodeTotalOperands;
-			calcLength = uniqueOperators.size() * MetricsLib.log2(uniqueOperators.size()) + uniqueOperands.size()*MetricsLib.log2(uniqueOperands.size());
+			calcLength = (long) uniqueOperators.size() * MetricsLib.log2(uniqueOperators.size()) + (long) uniqueOperands.size()*MetricsLib.log2(uniqueOperands.size());
 			volume = nodeTotalOperators * MetricsLib.log2(vocabulary);
 			difficulty = uniqueOperands.size() > 0 ? ((uniqueOperators.size() / 2) * (nodeTotalOperands / uniqueOperands.size()) ): 0;
 			effort = difficulty*volume;
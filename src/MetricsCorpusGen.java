@@ -0,0 +1,249 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import picocli.CommandLine;
+import picocli.CommandLine.*;
+
+/*	MetricsCorpusGen.java
+*
+*	Writes a synthetic source tree for load testing, run as its own entry point:
+*		java MetricsCorpusGen --out=<dir> [--files=<n> | --total-size=<bytes>] [--seed=<n>] ...
+*
+*	The same seed and options always produce the same bytes. File sizes are drawn up front from one
+*	generator, and every file then gets its own generator seeded from the run seed and its index,
+*	so files can be written on any number of threads without changing the output.
+*
+*	Sizes follow a log-normal distribution around --median-size. Source files mix statements,
+*	line comments and block comments of a chosen span, string literals at a chosen density, and
+*	identifiers drawn, skewed towards the first few, from a vocabulary of a chosen size. Text files
+*	are prose made of pseudo-words from a similar vocabulary.
+*/
+@Command(description="Generates a reproducible tree of C, C++, Java and text files for load tests.", name="MetricsCorpusGen")
+public class MetricsCorpusGen implements Runnable {
+	private static final String[] SYLLABLES = { "ka", "lo", "mi", "ne", "ru", "ta", "vo", "shi", "der", "pon", "qua", "ex", "ul", "fen", "gri", "bar" };
+	private static final String[] C_TYPES = { "int", "long", "char", "double", "unsigned", "size_t" },
+								JAVA_TYPES = { "int", "long", "char", "double", "String", "boolean" },
+								OPERATORS = { "+", "-", "*", "/", "%", "<<", ">>", "&", "|", "^", "&&", "||", "==", "!=", "<", ">=" };
+	private static final String[] EXTENSIONS = { ".c", ".cpp", ".java", ".txt" };	// in --mix order
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	@Option(description = "Directory to write the tree into", names = {"--out"}, paramLabel="<dir>", required = true)
+	String outDirectory;
+
+	@Option(description = "Number of files to write (default: 1000)", names = {"--files"}, paramLabel="<n>")
+	int fileCount = 1000;
+
+	@Option(description = "Keep writing files until they add up to this many bytes; overrides --files", names = {"--total-size"}, paramLabel="<bytes>")
+	long totalSize;
+
+	@Option(description = "Seed of the random generator (default: 1)", names = {"--seed"}, paramLabel="<n>")
+	long seed = 1;
+
+	@Option(description = "Relative weights of c, cpp, java and txt files (default: 1,1,2,1)", names = {"--mix"}, split = ",", paramLabel="<weight>")
+	int[] mix = { 1, 1, 2, 1 };
+
+	@Option(description = "Median file size in bytes (default: 8192)", names = {"--median-size"}, paramLabel="<bytes>")
+	long medianSize = 8192;
+
+	@Option(description = "Spread of file sizes, the sigma of the log-normal (default: 1.0)", names = {"--size-sigma"}, paramLabel="<sigma>")
+	double sizeSigma = 1.0;
+
+	@Option(description = "Largest file in bytes (default: 67108864)", names = {"--max-size"}, paramLabel="<bytes>")
+	long maxSize = 64L << 20;
+
+	@Option(description = "Fraction of source lines that are comments (default: 0.2)", names = {"--comment-density"}, paramLabel="<fraction>")
+	double commentDensity = 0.2;
+
+	@Option(description = "Fraction of comments that are block comments (default: 0.3)", names = {"--block-comments"}, paramLabel="<fraction>")
+	double blockCommentShare = 0.3;
+
+	@Option(description = "Mean lines per block comment (default: 4)", names = {"--block-span"}, paramLabel="<lines>")
+	int blockSpan = 4;
+
+	@Option(description = "Fraction of statements holding a string literal (default: 0.1)", names = {"--literal-density"}, paramLabel="<fraction>")
+	double literalDensity = 0.1;
+
+	@Option(description = "Distinct identifiers, and distinct words in text files (default: 2000)", names = {"--vocabulary"}, paramLabel="<n>")
+	int vocabularySize = 2000;
+
+	@Option(description = "Files per directory (default: 1000)", names = {"--per-directory"}, paramLabel="<n>")
+	int filesPerDirectory = 1000;
+
+	@Option(description = "Threads writing files, 0 for one per core (default: 0)", names = {"-j", "--threads"}, paramLabel="<threads>")
+	int threads = 0;
+
+	private String[] vocabulary;
+
+	public static void main(String[] args) {
+		CommandLine.run(new MetricsCorpusGen(), args);
+	}
+
+	public void run() {
+		if (mix.length != EXTENSIONS.length) {
+			System.err.println("--mix takes " + EXTENSIONS.length + " weights: c, cpp, java and txt");
+			return;
+		}
+		vocabulary = vocabulary(new Random(seed), Math.max(1, vocabularySize));
+		List<Long> sizes = sizes(new Random(seed * GOLDEN));
+		Path root = Paths.get(outDirectory);
+		ForkJoinPool pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+		try {
+			pool.submit(() -> IntStream.range(0, sizes.size()).parallel().forEach(index -> write(root, index, sizes.get(index)))).get();
+		} catch (Exception e) {
+			System.err.println("Could not write corpus: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+			return;
+		} finally {
+			pool.shutdown();
+		}
+		long bytes = 0;
+		for (long size : sizes) bytes += size;
+		System.out.printf("Wrote %d files, %d bytes, to %s%n", sizes.size(), bytes, root);
+	}
+
+	/**
+	 * @return The size of every file, drawn in order from one generator.
+	 */
+	private List<Long> sizes(Random random) {
+		List<Long> sizes = new ArrayList<Long>();
+		long written = 0;
+		while (totalSize > 0 ? written < totalSize : sizes.size() < fileCount) {
+			long size = Math.round(medianSize * Math.exp(sizeSigma * random.nextGaussian()));
+			size = Math.max(1, Math.min(maxSize, size));
+			if (totalSize > 0) size = Math.min(size, totalSize - written);
+			sizes.add(size);
+			written += size;
+		}
+		return sizes;
+	}
+
+	/** Writes one file. Everything about it follows from the run seed and its index.
+	 * @param root Top of the tree.
+	 * @param index Number of the file.
+	 * @param size Exact size of the file in bytes.
+	 */
+	private void write(Path root, int index, long size) {
+		Random random = new Random(seed ^ (index + 1) * GOLDEN);
+		String extension = EXTENSIONS[pick(random, mix)];
+		Path file = root.resolve(String.format("d%05d/f%07d%s", index / Math.max(1, filesPerDirectory), index, extension));
+		try {
+			Files.createDirectories(file.getParent());
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+				StringBuilder line = new StringBuilder(256);
+				byte[] bytes = new byte[256];
+				int blockLeft = 0, depth = 0;
+				for (long left = size; left > 0;) {
+					line.setLength(0);
+					if (extension.equals(".txt")) prose(random, line);
+					else if (blockLeft > 0) {
+						line.append(--blockLeft == 0 ? " */" : " * ");
+						if (blockLeft > 0) prose(random, line);
+					}
+					else if (random.nextDouble() < commentDensity) {
+						if (random.nextDouble() < blockCommentShare) {
+							blockLeft = 1 + random.nextInt(Math.max(1, 2 * blockSpan - 1));
+							line.append("/* ");
+						}
+						else line.append("// ");
+						prose(random, line);
+					}
+					else depth = statement(random, line, extension, depth);
+					line.append('\n');
+					int length = (int) Math.min(line.length(), left);
+					if (bytes.length < length) bytes = new byte[line.length() * 2];
+					for (int i = 0; i < length; i++) bytes[i] = (byte) line.charAt(i); //Everything generated is ASCII
+					out.write(bytes, 0, length);
+					left -= length;
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write " + file, e);
+		}
+	}
+
+	/** Appends one line of code: a declaration, an assignment, a call, or an opening or closing brace.
+	 * @return Brace depth after the line.
+	 */
+	private int statement(Random random, StringBuilder line, String extension, int depth) {
+		boolean java = extension.equals(".java");
+		for (int i = 0; i < depth; i++) line.append('\t');
+		int kind = random.nextInt(10);
+		if (kind == 0 && depth < 6) {
+			line.append(random.nextBoolean() ? "if (" : "while (").append(identifier(random)).append(' ')
+				.append(OPERATORS[12 + random.nextInt(4)]).append(' ').append(random.nextInt(1000)).append(") {");
+			return depth + 1;
+		}
+		if (kind == 1 && depth > 0) {
+			line.setLength(line.length() - 1);
+			line.append('}');
+			return depth - 1;
+		}
+		if (random.nextDouble() < literalDensity) {
+			line.append(java ? "System.out.println(\"" : "printf(\"");
+			prose(random, line);
+			line.append(" %d\\n\", ").append(identifier(random)).append(");");
+			return depth;
+		}
+		if (kind < 5) {
+			String[] types = java ? JAVA_TYPES : C_TYPES;
+			line.append(types[random.nextInt(types.length)]).append(' ');
+		}
+		line.append(identifier(random)).append(" = ").append(identifier(random));
+		for (int terms = random.nextInt(4); terms > 0; terms--)
+			line.append(' ').append(OPERATORS[random.nextInt(OPERATORS.length)]).append(' ')
+				.append(random.nextInt(3) == 0 ? Integer.toString(random.nextInt(100)) : identifier(random));
+		line.append(';');
+		return depth;
+	}
+
+	/**
+	 * Appends a few words of prose.
+	 */
+	private void prose(Random random, StringBuilder line) {
+		for (int words = 3 + random.nextInt(10); words > 0; words--) {
+			line.append(identifier(random));
+			if (words > 1) line.append(' ');
+		}
+	}
+
+	/**
+	 * @return A vocabulary word, the first ones far more often than the last, as in real code and text.
+	 */
+	private String identifier(Random random) {
+		double skew = random.nextDouble();
+		return vocabulary[(int) (skew * skew * skew * vocabulary.length)];
+	}
+
+	private static String[] vocabulary(Random random, int size) {
+		String[] words = new String[size];
+		for (int i = 0; i < size; i++) {
+			StringBuilder word = new StringBuilder();
+			for (int syllables = 1 + random.nextInt(3); syllables > 0; syllables--) word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			words[i] = word.append(i).toString(); //The index keeps every word distinct
+		}
+		return words;
+	}
+
+	/**
+	 * @return An index into the weights, chosen in proportion to them.
+	 */
+	private static int pick(Random random, int[] weights) {
+		int total = 0;
+		for (int weight : weights) total += Math.max(0, weight);
+		int roll = random.nextInt(Math.max(1, total));
+		for (int i = 0; i < weights.length; i++) {
+			roll -= Math.max(0, weights[i]);
+			if (roll < 0) return i;
+		}
+		return weights.length - 1;
+	}
+}
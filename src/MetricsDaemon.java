@@ -0,0 +1,184 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import picocli.CommandLine;
+
+/*	MetricsDaemon.java
+*
+*	Keeps one JVM resident so repeated invocations skip JVM startup, class loading, picocli's
+*	reflection and a cold JIT. The daemon listens on a Unix domain socket; the thin client sends
+*	its working directory and argv, and the daemon runs them through a fresh MetricsApp exactly as
+*	main() would, streaming the output back over the same connection.
+*
+*	Every request runs on its own thread with its own MetricsApp and read options, so a quick
+*	request from an editor is not held up behind a long -r run from another client.
+*
+*	Requests that use --cache or --resume on the same directory run one at a time, since the result
+*	cache and resume store are each saved whole; see MetricsApp.run.
+*
+*	The protocol is plain enough for nc -U, socat or a few lines of any language. Every integer is
+*	4 bytes, big-endian.
+*	Request: fields of a length and that many bytes of UTF-8, the working directory first and then
+*	one per argument; the client then shuts down its side of the connection to end the list.
+*	Response: frames of a byte saying which stream they belong to (OUT=1 or ERR=2), a length and
+*	that many bytes, ended by an EXIT byte (0) and the exit status, so the client can keep stdout
+*	clean and exit as a local run would. For example, a request for -l on a.c from /src is
+*		printf '\0\0\0\4/src\0\0\0\2-l\0\0\0\3a.c' | nc -UN metrics.sock
+*/
+class MetricsDaemon {
+	private static final int EXIT = 0, OUT = 1, ERR = 2;
+	private static final int MAX_FIELD_LENGTH = 1 << 20;
+	
+	/** Serves requests until the process is killed.
+	 * @param socket Path of the socket file; a stale one is replaced.
+	 * @throws IOException Throws if the socket cannot be bound.
+	 */
+	static void serve(Path socket) throws IOException {
+		Files.deleteIfExists(socket);
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(socket));
+			socket.toFile().deleteOnExit();
+			System.err.println("Metrics daemon listening on " + socket);
+			while (true) {
+				SocketChannel connection = server.accept();
+				Thread handler = new Thread(() -> handle(connection), "metrics-daemon-request");
+				handler.setDaemon(true);
+				handler.start();
+			}
+		}
+	}
+	
+	/** Forwards argv to a running daemon and copies its output to stdout and its diagnostics to stderr.
+	 * @param socket Path of the daemon's socket file.
+	 * @param args Arguments to run, as they would be given to MetricsApp.
+	 * @return Exit status of the run.
+	 * @throws IOException Throws if the daemon cannot be reached or hangs up before the run ends.
+	 */
+	static int forward(Path socket, String[] args) throws IOException {
+		try (SocketChannel connection = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+			connection.connect(UnixDomainSocketAddress.of(socket));
+			DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection)));
+			writeField(request, Paths.get("").toAbsolutePath().toString());
+			for (String arg : args) writeField(request, arg);
+			request.flush();
+			connection.shutdownOutput();
+			
+			DataInputStream response = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection), 1 << 16));
+			byte[] buffer = new byte[1 << 16];
+			for (int stream; (stream = response.readUnsignedByte()) != EXIT;) {
+				PrintStream target = stream == ERR ? System.err : System.out;
+				for (int left = response.readInt(); left > 0;) {
+					int read = response.read(buffer, 0, Math.min(left, buffer.length));
+					if (read < 0) throw new EOFException("Daemon closed the connection mid-frame");
+					target.write(buffer, 0, read);
+					left -= read;
+				}
+			}
+			int status = response.readInt();
+			System.out.flush();
+			System.err.flush();
+			return status;
+		}
+	}
+	
+	private static void handle(SocketChannel connection) {
+		try (connection) {
+			DataInputStream request = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection)));
+			String directory = readField(request);
+			if (directory == null) throw new EOFException("No working directory in the request");
+			Path workingDirectory = Paths.get(directory);
+			List<String> argList = new ArrayList<>();
+			for (String arg; (arg = readField(request)) != null;) argList.add(arg);
+			String[] args = MetricsApp.mapStdinArguments(argList.toArray(new String[0]));
+			
+			DataOutputStream response = new DataOutputStream(Channels.newOutputStream(connection));
+			PrintStream out = newPrintStream(new BufferedOutputStream(new Frames(response, OUT), 1 << 16), false);
+			PrintStream err = newPrintStream(new BufferedOutputStream(new Frames(response, ERR), 1 << 12), true);
+			int status = 0;
+			MetricsApp app = new MetricsApp(out, err, workingDirectory);
+			if (args.length == 0) CommandLine.usage(app, out);
+			else {
+				CommandLine.run(app, out, err, CommandLine.Help.Ansi.OFF, args);
+				status = app.exitStatus();
+			}
+			out.flush();
+			err.flush();
+			synchronized (response) {
+				response.writeByte(EXIT);
+				response.writeInt(status);
+				response.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("Metrics daemon request failed: " + e.getMessage());
+		}
+	}
+	
+	private static void writeField(DataOutputStream request, String field) throws IOException {
+		byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+		request.writeInt(bytes.length);
+		request.write(bytes);
+	}
+	
+	/**
+	 * @return The next length-prefixed UTF-8 field of the request, or null if the client has ended it.
+	 * @throws IOException Throws if the request ends mid-field or gives an implausible length.
+	 */
+	private static String readField(DataInputStream request) throws IOException {
+		int first = request.read();
+		if (first < 0) return null;
+		int length = first << 24 | request.readUnsignedByte() << 16 | request.readUnsignedByte() << 8 | request.readUnsignedByte();
+		if (length < 0 || length > MAX_FIELD_LENGTH) throw new IOException("Bad field length " + length + " in request");
+		byte[] bytes = new byte[length];
+		request.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static PrintStream newPrintStream(OutputStream response, boolean autoFlush) {
+		try { return new PrintStream(response, autoFlush, "UTF-8"); }
+		catch (UnsupportedEncodingException e) { throw new IllegalStateException(e); }
+	}
+	
+	/**
+	 * Writes everything it is given to the response as frames of one stream.
+	 */
+	private static final class Frames extends OutputStream {
+		private final DataOutputStream response;
+		private final int stream;
+		
+		Frames(DataOutputStream response, int stream) {
+			this.response = response;
+			this.stream = stream;
+		}
+		
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) return;
+			synchronized (response) { //out and err are written from different threads
+				response.writeByte(stream);
+				response.writeInt(length);
+				response.write(bytes, offset, length);
+			}
+		}
+	}
+}
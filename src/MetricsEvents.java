@@ -0,0 +1,117 @@
+import java.io.File;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/*	MetricsEvents.java
+*
+*	Java Flight Recorder events for file analysis, so a continuous recording of a production run
+*	shows which files were slow next to the GC and I/O events the JVM records anyway. Nothing here
+*	changes output. Events are only filled in and committed while a recording has them enabled;
+*	otherwise each costs an allocation the JIT can usually remove and a flag check.
+*
+*	Comment classification and Halstead tokenization share one pass over the bytes, so the
+*	classification event's scan time includes tokenizing when -H is on; the Halstead event
+*	times deriving the figures from the counted tokens.
+*/
+final class MetricsEvents {
+	private MetricsEvents() {
+	}
+
+	@Name("metrics.FileAnalysis")
+	@Label("File Analysis")
+	@Category("Metrics")
+	@Description("Analysis of one file by Metrics.setPath or SourceMetrics.setPath")
+	static final class FileAnalysis extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Language")
+		String language;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Lines")
+		long lines;
+
+		@Label("Tokens")
+		@Description("Halstead operators plus operands, 0 for text")
+		long tokens;
+	}
+
+	@Name("metrics.CommentClassification")
+	@Label("Comment Classification")
+	@Category("Metrics")
+	@Description("Pass of the comment/string state machine over one source file, from its first buffer to its last")
+	static final class CommentClassification extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Source Lines")
+		long sourceLines;
+
+		@Label("Comment Lines")
+		long commentLines;
+
+		@Label("Scan Time")
+		@Description("Time spent classifying bytes, without the reads in between")
+		@Timespan(Timespan.NANOSECONDS)
+		long scanTime;
+
+		@Label("Tokenized")
+		@Description("Whether the Halstead lexer ran in the same pass")
+		boolean tokenized;
+	}
+
+	@Name("metrics.Halstead")
+	@Label("Halstead Metrics")
+	@Category("Metrics")
+	@Description("Derivation of one source file's Halstead figures from its token counts")
+	static final class Halstead extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Operators")
+		long operators;
+
+		@Label("Operands")
+		long operands;
+
+		@Label("Unique Operators")
+		long uniqueOperators;
+
+		@Label("Unique Operands")
+		long uniqueOperands;
+
+		@Label("Effort")
+		long effort;
+	}
+
+	/** Ends a file analysis event and commits it with the file's figures, if it is being recorded.
+	 * @param event Event begun before the file was analyzed.
+	 * @param metrics The analyzed file.
+	 * @param file The file, for its size.
+	 */
+	static void fileAnalyzed(FileAnalysis event, IMetrics metrics, File file) {
+		event.end();
+		if (!event.shouldCommit()) return;
+		MetricsLanguage language = metrics.isSource() ? MetricsLanguage.forExtension(MetricsLib.getFileExtension(metrics.getPath())) : null;
+		event.path = metrics.getPath();
+		event.language = language != null ? language.name : "text";
+		event.bytes = file.length();
+		event.lines = metrics.getLineCount();
+		event.tokens = metrics.getHalsteadn1() + metrics.getHalsteadn2();
+		event.commit();
+	}
+}
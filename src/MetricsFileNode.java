@@ -1,51 +1,193 @@
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 
 
 public class MetricsFileNode {
+	/** STREAM copies through a heap buffer, MAP memory-maps the file, AUTO maps files of at least mapThreshold bytes. */
+	public enum ReadMode { STREAM, MAP, AUTO }
 	
-	int lines, chars, words;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long MAP_WINDOW = 1L << 28; //Mapped a window at a time so files over 2GB still work
+	
+	long lines, chars, words;
 	protected String ext;
 	protected File file;
+	protected final MetricsPlan plan;
+	protected final MetricsReadOptions options;
+	protected MetricsScanner scanner;
 	
 	public MetricsFileNode(File toCount) {
+		this(toCount, MetricsPlan.FULL);
+	}
+	public MetricsFileNode(File toCount, MetricsPlan plan) {
+		this(toCount, plan, MetricsReadOptions.DEFAULT);
+	}
+	/**
+	 * @param toCount File to count.
+	 * @param plan Stages to run.
+	 * @param options How the run reads its files.
+	 */
+	public MetricsFileNode(File toCount, MetricsPlan plan, MetricsReadOptions options) {
 		ext = MetricsLib.getFileExtension(toCount);
 		this.file = toCount;
+		this.plan = plan;
+		this.options = options;
+		scanner = new MetricsScanner(!plan.needsTextScan());
 		if (!file.exists()) throw new IllegalArgumentException("No file found matching '" + file.getName() + "'");
 
 	}
+	/** Node for a stream with no file behind it, counted with getStreamMetrics().
+	 * @param extension Extension the stream's contents would have as a file, e.g. ".java", or "".
+	 * @param plan Stages to run.
+	 */
+	public MetricsFileNode(String extension, MetricsPlan plan) {
+		ext = extension;
+		this.plan = plan;
+		this.options = MetricsReadOptions.DEFAULT;
+		scanner = new MetricsScanner(!plan.needsTextScan());
+	}
+	/** Reads the file once, handing each buffer to consume() before finishing the count.
+	 * @throws UncheckedIOException Throws if the file cannot be read; the message says why, e.g. "Is a directory".
+	 */
 	protected void getFileMetrics() {
-		String line = null;
-		BufferedReader reader = null;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MetricsResumeStore resumeStore = options.resumeStore;
+			long size = channel.size(), start = resumeStore != null && isResumable() ? resume(channel) : 0;
+			boolean mapped = options.readMode == ReadMode.MAP || (options.readMode == ReadMode.AUTO && size - start >= options.mapThreshold);
+			if (isSplittable() && size - start >= options.splitThreshold) 
+				scanner.merge(new MetricsSplitCounter(channel, start, size, mapped, !plan.needsTextScan()).invoke());
+			else if (mapped) readMapped(channel, start, size);
+			else readStreamed(channel, start, size);
+			if (resumeStore != null && isResumable() && (start == 0 || size > start)) {
+				ByteArrayOutputStream state = new ByteArrayOutputStream();
+				saveState(new DataOutputStream(state));
+				resumeStore.put(file.toPath(), plan.stages(), channel, size, state.toByteArray());
+			}
+			finish();
+		} catch (FileNotFoundException | NoSuchFileException e) {
+			throw new UncheckedIOException("No such file", e);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e.getMessage() != null ? e.getMessage() : "IO Exception while reading.", e);
+		}
+	}
+	
+	/** Counts a stream, such as standard input, to its end through the same consume() path as a file.
+	 *  Only one buffer is ever held, so memory stays constant however much is piped in.
+	 * @param channel Stream to count.
+	 */
+	protected void getStreamMetrics(ReadableByteChannel channel) {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
 		try {
-			reader = new BufferedReader(new FileReader(file));
-			while (reader.read() > -1)
-				chars++;
-			reader.close();
-			
-			reader = new BufferedReader(new FileReader(file)); //Reset reader to start reading lines
-			line = reader.readLine();
-			while (line != null) { 		
-				getLineMetrics(line);
-				line = reader.readLine();
+			while (channel.read(buffer) > -1) {
+				if (buffer.hasRemaining()) continue; //Pipes hand out small reads; fill the buffer first
+				buffer.flip();
+				consume(buffer);
+				buffer.clear();
 			}
-			reader.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			System.out.println("Argument could not be parsed as an argument or filename.");
-			System.exit(1);
+			buffer.flip();
+			if (buffer.hasRemaining()) consume(buffer);
+			finish();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.out.println("IO Exception while reading.");
-			System.exit(1);
+			throw new UncheckedIOException("IO Exception while reading.", e);
+		}
+	}
+	
+	/** Restores the state saved at the end of the last run, if the file has only grown since.
+	 * @param channel Open channel for the file.
+	 * @return Offset to continue counting from, 0 if the file has to be counted from the start.
+	 * @throws IOException Throws if the saved state cannot be checked.
+	 */
+	private long resume(FileChannel channel) throws IOException {
+		MetricsResumeStore.Entry saved = options.resumeStore.get(file.toPath(), plan.stages(), channel);
+		if (saved == null) return 0;
+		restoreState(new DataInputStream(new ByteArrayInputStream(saved.state)));
+		return saved.offset;
+	}
+	
+	/** Reads bytes [from, to) through one heap buffer. Stopping at the size seen on opening keeps a file
+	 *  that is still being appended to from being counted past the offset that gets saved.
+	 */
+	private void readStreamed(FileChannel channel, long from, long to) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		for (long position = from; position < to;) {
+			buffer.limit((int) Math.min(BUFFER_SIZE, to - position));
+			int read = channel.read(buffer, position);
+			if (read < 0) break;
+			position += read;
+			buffer.flip();
+			consume(buffer);
+			buffer.clear();
 		}
 	}
-	protected void getLineMetrics(String line) {
-		lines++;		
-		words += line.split("\\s+").length; 
+	
+	/** Walks bytes [from, to) through read-only mappings of at most MAP_WINDOW bytes each, so nothing is copied onto the heap.
+	 * @param channel Open channel for the file.
+	 * @param from First byte to count.
+	 * @param to One past the last byte to count.
+	 * @throws IOException Throws if a window cannot be mapped.
+	 */
+	private void readMapped(FileChannel channel, long from, long to) throws IOException {
+		for (long position = from; position < to; position += MAP_WINDOW) 
+			consume(channel.map(MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, to - position)));
+	}
+	
+	/**
+	 * @return True if counting can stop at the end of the file and continue there on the next run.
+	 */
+	protected boolean isResumable() {
+		return true;
+	}
+	
+	/** Writes the counting state after the last consumed buffer. Subclasses that count more add their own state.
+	 * @param out Where the state is written.
+	 * @throws IOException Throws if the state cannot be written.
+	 */
+	protected void saveState(DataOutput out) throws IOException {
+		scanner.save(out);
+	}
+	
+	/** Reads back what saveState() wrote, before any buffer is consumed.
+	 * @param in Where the state is read from.
+	 * @throws IOException Throws if the state cannot be read.
+	 */
+	protected void restoreState(DataInput in) throws IOException {
+		scanner.restore(in);
+	}
+	
+	/**
+	 * @return True if the file may be counted as independent byte ranges instead of by a single consume() pass.
+	 */
+	protected boolean isSplittable() {
+		return true;
+	}
+	
+	/** Counts one buffer of the file. Must not move the buffer's position.
+	 * @param buffer Next chunk of the file, between position and limit.
+	 */
+	protected void consume(ByteBuffer buffer) {
+		scanner.scan(buffer);
+	}
+	/**
+	 * Called after the last buffer has been consumed.
+	 */
+	protected void finish() {
+		scanner.finish();
+		lines = scanner.lines;
+		words = scanner.words;
+		chars = scanner.chars;
 	}
-}
\ No newline at end of file
+}
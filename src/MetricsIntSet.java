@@ -0,0 +1,55 @@
+import java.util.Arrays;
+
+/*	MetricsIntSet.java
+*
+*	Open-addressing set of non-negative ints, stored in a plain int[] with linear probing.
+*	Used for the Halstead unique counts, where a HashSet would box every entry.
+*/
+class MetricsIntSet {
+	private static final int EMPTY = -1;
+	private int[] slots;
+	private int size;
+
+	MetricsIntSet() {
+		slots = new int[16];
+		Arrays.fill(slots, EMPTY);
+	}
+
+	/** Adds a value if it is not already present.
+	 * @param value Non-negative value to add.
+	 * @return True if the set did not already hold the value.
+	 */
+	boolean add(int value) {
+		int mask = slots.length - 1;
+		for (int slot = mix(value) & mask;; slot = (slot + 1) & mask) {
+			if (slots[slot] == value) return false;
+			if (slots[slot] == EMPTY) {
+				slots[slot] = value;
+				if (++size * 2 > slots.length) grow();
+				return true;
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		int[] old = slots;
+		slots = new int[old.length * 2];
+		Arrays.fill(slots, EMPTY);
+		int mask = slots.length - 1;
+		for (int value : old) {
+			if (value == EMPTY) continue;
+			int slot = mix(value) & mask;
+			while (slots[slot] != EMPTY) slot = (slot + 1) & mask;
+			slots[slot] = value;
+		}
+	}
+
+	private static int mix(int value) {
+		int h = value * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*	MetricsLanguage.java
+*
+*	Registry of the source languages Metrics understands. Each profile is built once, at class load,
+*	and is immutable afterwards, so a file resolves its extension to a profile once and every code
+*	line after that works from the profile's precomputed tables.
+*
+*	Reserved words sit in a perfect-hashed table: a seed is searched for at startup under which no
+*	two keywords share a slot, so classifying a word is one hash, one array probe and one compare.
+*/
+public final class MetricsLanguage {
+	private static final int MAX_SEED = 1 << 12;
+	private static final Map<String, MetricsLanguage> BY_EXTENSION;
+	static {
+		Map<String, MetricsLanguage> registry = new HashMap<String, MetricsLanguage>();
+		String[] cOperators = without(MetricsLib.halsteadOperators, ">>>", ">>>=");
+		register(registry, new MetricsLanguage("c", cOperators, MetricsLib.cIncludedOperators, MetricsLib.cExcludedOperands), ".c", ".h");
+		register(registry, new MetricsLanguage("cpp", cOperators, MetricsLib.cppIncludedOperators, MetricsLib.cppExcludedOperands), ".cpp", ".hpp");
+		register(registry, new MetricsLanguage("java", MetricsLib.halsteadOperators, MetricsLib.javaIncludedOperators, MetricsLib.javaExcludedOperands), ".java", ".javah");
+		BY_EXTENSION = Collections.unmodifiableMap(registry);
+	}
+
+	final String name;
+	final MetricsLexer.Table operators;
+	private final char[][] keywords;			// slot -> keyword, null if the slot is empty
+	private final boolean[] keywordIsOperator;	// otherwise the keyword is an excluded operand
+	private final int seed, mask, longestKeyword;
+
+	private MetricsLanguage(String name, String[] operators, Set<String> includedOperators, Set<String> excludedOperands) {
+		this.name = name;
+		this.operators = new MetricsLexer.Table(operators);
+		List<String> words = new ArrayList<String>(includedOperators);
+		for (String word : excludedOperands) if (!includedOperators.contains(word)) words.add(word);
+
+		int size = Integer.highestOneBit(Math.max(1, words.size()) * 2), found = 0;
+		while ((found = findSeed(words, size)) == 0) size <<= 1;
+		seed = found;
+		mask = size - 1;
+		keywords = new char[size][];
+		keywordIsOperator = new boolean[size];
+		int longest = 0;
+		for (String word : words) {
+			char[] text = word.toCharArray();
+			int slot = hash(text, text.length, seed) & mask;
+			keywords[slot] = text;
+			keywordIsOperator[slot] = includedOperators.contains(word);
+			longest = Math.max(longest, text.length);
+		}
+		longestKeyword = longest;
+	}
+
+	/** Looks up the language for a file extension.
+	 * @param extension Extension including the dot, e.g. ".java".
+	 * @return The language's profile, or null if the extension is not a source language.
+	 */
+	public static MetricsLanguage forExtension(String extension) {
+		return BY_EXTENSION.get(extension);
+	}
+
+	/** Finds a reserved word.
+	 * @param text Buffer holding the word.
+	 * @param length Length of the word.
+	 * @return The word's keyword slot, or -1 if it is not a reserved word of this language.
+	 */
+	int keyword(char[] text, int length) {
+		if (length > longestKeyword) return -1;
+		int slot = hash(text, length, seed) & mask;
+		char[] candidate = keywords[slot];
+		if (candidate == null || candidate.length != length) return -1;
+		for (int i = 0; i < length; i++) if (candidate[i] != text[i]) return -1;
+		return slot;
+	}
+
+	/**
+	 * @return True if the keyword counts as an operator, false if it is simply not an operand.
+	 */
+	boolean isOperator(int keywordSlot) {
+		return keywordIsOperator[keywordSlot];
+	}
+
+	private static int hash(char[] text, int length, int seed) {
+		int h = length;
+		for (int i = 0; i < length; i++) h = h * seed + text[i];
+		return h ^ (h >>> 15);
+	}
+
+	/**
+	 * @return A seed under which every word lands in its own slot of a table of the given size, or 0 if none was found.
+	 */
+	private static int findSeed(List<String> words, int size) {
+		boolean[] taken = new boolean[size];
+		nextSeed:
+		for (int candidate = 31; candidate < MAX_SEED; candidate += 2) {
+			Arrays.fill(taken, false);
+			for (String word : words) {
+				int slot = hash(word.toCharArray(), word.length(), candidate) & (size - 1);
+				if (taken[slot]) continue nextSeed;
+				taken[slot] = true;
+			}
+			return candidate;
+		}
+		return 0;
+	}
+
+	private static void register(Map<String, MetricsLanguage> registry, MetricsLanguage language, String... extensions) {
+		for (String extension : extensions) registry.put(extension, language);
+	}
+
+	private static String[] without(String[] operators, String... removed) {
+		List<String> kept = new ArrayList<String>(Arrays.asList(operators));
+		kept.removeAll(Arrays.asList(removed));
+		return kept.toArray(new String[kept.size()]);
+	}
+}
@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+/*	MetricsLexer.java
+*
+*	Table-driven tokenizer for the Halstead pass. Characters are fed in one at a time, left to right,
+*	and operator and operand tokens are handed to a TokenSink as soon as they end. Operators are
+*	matched longest-first by walking a DFA built once from the operator list; operands are runs of
+*	word characters, the same [A-Za-z0-9_] the old \w regex matched. Nothing is allocated per line.
+*/
+class MetricsLexer {
+	/** Receives tokens as the lexer finds them. */
+	interface TokenSink {
+		void operator(int operatorId);					// operatorId indexes Table.operator()
+		void operand(char[] text, int length);			// text is only valid during the call
+	}
+
+	/** Immutable operator DFA, built once and shared by every lexer that uses it. */
+	static final class Table {
+		private static final int ASCII = 128;
+		private final int[] transitions;		// state * ASCII + char -> next state, 0 for none
+		private final int[] accepting;			// state -> operator id
+		private final String[] operators;
+
+		/**
+		 * @param operators Operator spellings, all ASCII. Every prefix of an operator must itself be an
+		 *        operator (as with "&gt;&gt;&gt;=", "&gt;&gt;&gt;", "&gt;&gt;", "&gt;"), so the longest match never needs to back up.
+		 */
+		Table(String... operators) {
+			this.operators = operators.clone();
+			int states = 1;
+			for (String op : operators) states += op.length();
+			transitions = new int[states * ASCII];
+			accepting = new int[states];
+			int used = 1;
+			for (int id = 0; id < operators.length; id++) {
+				int state = 0;
+				for (int i = 0; i < operators[id].length(); i++) {
+					char c = operators[id].charAt(i);
+					if (c >= ASCII || LexerClass.of(c) == LexerClass.WORD)
+						throw new IllegalArgumentException("Unsupported operator '" + operators[id] + "'");
+					int next = transitions[state * ASCII + c];
+					if (next == 0) {
+						next = used++;
+						transitions[state * ASCII + c] = next;
+						accepting[next] = -1;
+					}
+					state = next;
+				}
+				accepting[state] = id;
+			}
+			for (int state = 1; state < used; state++)
+				if (accepting[state] < 0) throw new IllegalArgumentException("Operator prefixes must be operators too");
+		}
+
+		String operator(int operatorId) {
+			return operators[operatorId];
+		}
+
+		int size() {
+			return operators.length;
+		}
+	}
+
+	/** Character classes for the operand side of the lexer. */
+	private static final class LexerClass {
+		static final byte OTHER = 0, WORD = 1;
+		private static final byte[] CLASSES = new byte[Table.ASCII];
+		static {
+			for (char c = 'a'; c <= 'z'; c++) CLASSES[c] = WORD;
+			for (char c = 'A'; c <= 'Z'; c++) CLASSES[c] = WORD;
+			for (char c = '0'; c <= '9'; c++) CLASSES[c] = WORD;
+			CLASSES['_'] = WORD;
+		}
+		static byte of(int c) {
+			return c < Table.ASCII ? CLASSES[c] : OTHER;
+		}
+	}
+
+	private final Table table;
+	private final TokenSink sink;
+	private int operatorState;
+	private char[] token = new char[64];
+	private int tokenLength;
+
+	MetricsLexer(Table table, TokenSink sink) {
+		this.table = table;
+		this.sink = sink;
+	}
+
+	/** Advances the lexer by one character.
+	 * @param c Next character of code.
+	 */
+	void feed(int c) {
+		if (operatorState != 0) {
+			int next = c < Table.ASCII ? table.transitions[operatorState * Table.ASCII + c] : 0;
+			if (next != 0) {
+				operatorState = next;
+				return;
+			}
+			sink.operator(table.accepting[operatorState]);
+			operatorState = 0;
+		}
+		if (LexerClass.of(c) == LexerClass.WORD) {
+			if (tokenLength == token.length) token = Arrays.copyOf(token, tokenLength * 2);
+			token[tokenLength++] = (char) c;
+			return;
+		}
+		if (tokenLength > 0) {
+			sink.operand(token, tokenLength);
+			tokenLength = 0;
+		}
+		if (c < Table.ASCII) operatorState = table.transitions[c];
+	}
+
+	/** Adds a character to the current token whatever its class, so a string or char literal,
+	 *  quotes included, becomes one operand. Call end() when the literal closes.
+	 * @param c Next character of the literal.
+	 */
+	void literal(int c) {
+		if (operatorState != 0) {
+			sink.operator(table.accepting[operatorState]);
+			operatorState = 0;
+		}
+		if (tokenLength == token.length) token = Arrays.copyOf(token, tokenLength * 2);
+		token[tokenLength++] = (char) c;
+	}
+
+	/**
+	 * Flushes whatever token is in progress. Call wherever code stops, e.g. at the end of a line or before a comment.
+	 */
+	void end() {
+		if (operatorState != 0) {
+			sink.operator(table.accepting[operatorState]);
+			operatorState = 0;
+		}
+		if (tokenLength > 0) {
+			sink.operand(token, tokenLength);
+			tokenLength = 0;
+		}
+	}
+}
@@ -51,6 +51,11 @@ public class MetricsLib {
 								"final", "interface", "static", "void",
 								"class", "finally","strictfp", "volatile",
 								"const", "native", "super", "while"));
+	//Operators for the Halstead lexer, after the list at https://www.daniweb.com/programming/software-development/threads/307653/halstead-metrics
+	public static final String[] halsteadOperators = {
+								"=", ">", "<", "!", "~", "?", ":", "==", "<=", ">=", "!=", "&&", "||", "++", "--",
+								"+", "-", "*", "/", "&", "|", "^", "%", "<<", ">>", ">>>", "+=", "-=", "*=", "/=",
+								"&=", "|=", "^=", "%=", "<<=", ">>=", ">>>="};
 		/**Credit to technicalkeeda.com for getFileExtension()
 	 * @param file File to get extension from.
 	 * @return Returns the extension of the file.
@@ -70,9 +75,8 @@ public class MetricsLib {
 	} 
 	
 	public static String getFileExtension(String fileName) {
-		String extension = "";
-		extension = fileName.substring(fileName.lastIndexOf("."));
-		return extension;
+		int dot = fileName.lastIndexOf('.');
+		return dot < 0 ? "" : fileName.substring(dot);
 	}
 	
 	public static int log2(double n) {
@@ -80,11 +84,6 @@ public class MetricsLib {
 	}
 	
     public static boolean isSource(String filePath) {
-		return (getFileExtension(filePath).equals(".c")||
-				getFileExtension(filePath).equals(".h")||
-				getFileExtension(filePath).equals(".cpp")||
-				getFileExtension(filePath).equals(".hpp")||
-				getFileExtension(filePath).equals(".java")||
-				getFileExtension(filePath).equals(".javah"));
+		return MetricsLanguage.forExtension(getFileExtension(filePath)) != null;
 	};
 }
@@ -0,0 +1,48 @@
+/*	MetricsPlan.java
+*
+*	Which analysis stages a run needs, worked out once from the requested columns.
+*	Nodes consult the plan so that a column nobody asked for costs nothing: without -w or -c
+*	the scanner only looks for line breaks, without -s, -C or -H source files are read as plain
+*	text, and without -H the Halstead lexer never runs.
+*/
+public class MetricsPlan {
+	static final MetricsPlan FULL = new MetricsPlan(true, true, true, true, true, true);
+	
+	final boolean lines, words, chars, sourceLines, commentLines, halstead;
+	
+	public MetricsPlan(boolean countLines, boolean countWords, boolean countChars, 
+						boolean countCode, boolean countComments, boolean calcHalstead) {
+		lines = countLines;
+		words = countWords;
+		chars = countChars;
+		sourceLines = countCode;
+		commentLines = countComments;
+		halstead = calcHalstead;
+	}
+	
+	/**
+	 * @return True if words or chars are wanted; otherwise only line breaks need to be found.
+	 */
+	boolean needsTextScan() {
+		return words || chars;
+	}
+	
+	/**
+	 * @return True if source files need a MetricsCodeNode rather than plain text counting.
+	 */
+	boolean needsCodeNode() {
+		return sourceLines || commentLines || halstead;
+	}
+	
+	boolean needsTokens() {
+		return halstead;
+	}
+	
+	/**
+	 * @return The requested columns as a bit mask, for keying stored results.
+	 */
+	int stages() {
+		return (lines ? 1 : 0) | (words ? 2 : 0) | (chars ? 4 : 0) 
+				| (sourceLines ? 8 : 0) | (commentLines ? 16 : 0) | (halstead ? 32 : 0);
+	}
+}
@@ -0,0 +1,29 @@
+/*	MetricsReadOptions.java
+*
+*	How one run reads its files: the read mode, the size thresholds for mapping and for splitting
+*	a file across cores, and the resume store if --resume is on. Each run builds its own and hands
+*	it to the nodes it creates, so runs served side by side by the daemon never see each other's
+*	settings.
+*/
+class MetricsReadOptions {
+	static final long DEFAULT_MAP_THRESHOLD = 64L << 20, DEFAULT_SPLIT_THRESHOLD = 256L << 20;
+	static final MetricsReadOptions DEFAULT = new MetricsReadOptions(MetricsFileNode.ReadMode.AUTO, DEFAULT_MAP_THRESHOLD, DEFAULT_SPLIT_THRESHOLD, null);
+
+	final MetricsFileNode.ReadMode readMode;
+	final long mapThreshold;
+	final long splitThreshold;	//Files this big are counted in parallel pieces
+	final MetricsResumeStore resumeStore;	//When set, growing files are only counted from where the last run stopped
+
+	/**
+	 * @param readMode How files are read.
+	 * @param mapThreshold Smallest file AUTO read mode memory-maps.
+	 * @param splitThreshold Smallest file whose counting is split across cores.
+	 * @param resumeStore Store of where files were last counted to, or null to count every file in full.
+	 */
+	MetricsReadOptions(MetricsFileNode.ReadMode readMode, long mapThreshold, long splitThreshold, MetricsResumeStore resumeStore) {
+		this.readMode = readMode;
+		this.mapThreshold = mapThreshold;
+		this.splitThreshold = splitThreshold;
+		this.resumeStore = resumeStore;
+	}
+}
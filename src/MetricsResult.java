@@ -0,0 +1,145 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*	MetricsResult.java
+*
+*	Finished metrics of one file, detached from the node that computed them.
+*	Holds nothing but the numbers, so results can be cached, kept in tables for long-running
+*	modes, or written out in a fixed binary layout.
+*/
+public class MetricsResult implements IMetrics {
+	private String filePath;
+	private final boolean source;
+	private final long lines, words, chars, sourceLines, commentLines,
+					halsteadn1, halsteadn2, halsteadN1, halsteadN2,
+					vocabulary, programLength, calcProgramLength, volume, difficulty, effort, time, bugs;
+	
+	/** Copies the figures out of an analyzed file.
+	 * @param metrics Metrics of a file whose path has already been set.
+	 */
+	public MetricsResult(IMetrics metrics) {
+		this(metrics.getPath(), metrics.isSource(), new long[] { 
+				metrics.getLineCount(), metrics.getWordCount(), metrics.getCharacterCount(), 
+				metrics.getSourceLineCount(), metrics.getCommentLineCount(),
+				metrics.getHalsteadn1(), metrics.getHalsteadn2(), metrics.getHalsteadN1(), metrics.getHalsteadN2(),
+				metrics.getHalsteadVocabulary(), metrics.getHalsteadProgramLength(), metrics.getHalsteadCalculatedProgramLenght(),
+				metrics.getHalsteadVolume(), metrics.getHalsteadDifficulty(), metrics.getHalsteadEffort(),
+				metrics.getHalsteadTime(), metrics.getHalsteadBugs() });
+	}
+	
+	private MetricsResult(String path, boolean source, long[] values) {
+		filePath = path;
+		this.source = source;
+		lines = values[0];
+		words = values[1];
+		chars = values[2];
+		sourceLines = values[3];
+		commentLines = values[4];
+		halsteadn1 = values[5];
+		halsteadn2 = values[6];
+		halsteadN1 = values[7];
+		halsteadN2 = values[8];
+		vocabulary = values[9];
+		programLength = values[10];
+		calcProgramLength = values[11];
+		volume = values[12];
+		difficulty = values[13];
+		effort = values[14];
+		time = values[15];
+		bugs = values[16];
+	}
+	
+	/** Writes the figures, without the path, in a fixed binary layout.
+	 * @param out Destination.
+	 * @throws IOException Throws if the destination cannot be written.
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeBoolean(source);
+		long[] values = { lines, words, chars, sourceLines, commentLines, halsteadn1, halsteadn2, halsteadN1, halsteadN2,
+						vocabulary, programLength, calcProgramLength, volume, difficulty, effort, time, bugs };
+		for (long value : values) out.writeLong(value);
+	}
+	
+	/** Reads back figures written by write().
+	 * @param in Source.
+	 * @param path Path to report the figures under.
+	 * @return The result.
+	 * @throws IOException Throws if the source cannot be read.
+	 */
+	static MetricsResult read(DataInput in, String path) throws IOException {
+		boolean source = in.readBoolean();
+		long[] values = new long[17];
+		for (int i = 0; i < values.length; i++) values[i] = in.readLong();
+		return new MetricsResult(path, source, values);
+	}
+	
+	/**
+	 * A result is already computed, so setting the path only renames it.
+	 */
+	public boolean setPath(String path) {
+		filePath = path;
+		return true;
+	}
+	public String getPath() {
+		return filePath;
+	}
+	public boolean isSource() {
+		return source;
+	}
+	
+	public long getLineCount() {
+		return lines;
+	}
+	public long getWordCount() {
+		return words;
+	}
+	public long getCharacterCount() {
+		return chars;
+	}
+	
+	public long getSourceLineCount() {
+		return sourceLines;
+	}
+	public long getCommentLineCount() {
+		return commentLines;
+	}
+	
+	public long getHalsteadn1() {
+		return halsteadn1;
+	}
+	public long getHalsteadn2() {
+		return halsteadn2;
+	}
+	public long getHalsteadN1() {
+		return halsteadN1;
+	}
+	public long getHalsteadN2() {
+		return halsteadN2;
+	}
+	
+	public long getHalsteadVocabulary() {
+		return vocabulary;
+	}
+	public long getHalsteadProgramLength() {
+		return programLength;
+	}
+	public long getHalsteadCalculatedProgramLenght() {
+		return calcProgramLength;
+	}
+	public long getHalsteadVolume() {
+		return volume;
+	}
+	public long getHalsteadDifficulty() {
+		return difficulty;
+	}
+	public long getHalsteadEffort() {
+		return effort;
+	}
+	public long getHalsteadTime() {
+		return time;
+	}
+	public long getHalsteadBugs() {
+		return bugs;
+	}
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/*	MetricsResumeStore.java
+*
+*	Where counting stopped in files that only ever grow, such as logs. For each file and set of
+*	requested columns it keeps the byte offset reached, the node's counting state at that offset
+*	(counters, whether the last byte was inside a word, comment state for code files), and a
+*	checksum of the bytes just before the offset. The next run restores that state and only reads
+*	what was appended. A file that shrank, was replaced, or whose bytes before the offset changed
+*	is counted again from the start.
+*
+*	Like MetricsCache the store is one binary file, loaded when a run starts and replaced through a
+*	temporary file and an atomic rename when it ends.
+*
+*	File layout: magic, format, entry count, then per entry the stages, path, inode, offset,
+*	checksum, and the length-prefixed state bytes.
+*/
+class MetricsResumeStore {
+	private static final int MAGIC = 0x4D525353, FORMAT = 2; //"MRSS"
+	private static final int CHECK_LENGTH = 4096; //Bytes before the offset that must still match
+	private static final String STORE_NAME = "resume.bin";
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Path store;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile boolean dirty;
+
+	/** Counting state saved at the end of a file. */
+	static final class Entry {
+		final long inode, offset, check;
+		final byte[] state;
+
+		Entry(long inode, long offset, long check, byte[] state) {
+			this.inode = inode;
+			this.offset = offset;
+			this.check = check;
+			this.state = state;
+		}
+	}
+
+	/** Opens the store in the given directory, creating the directory if needed. A missing or unreadable store starts out empty.
+	 * @param directory Directory that holds the store.
+	 * @param warnings Told when an unreadable store is ignored.
+	 * @throws IOException Throws if the directory cannot be created.
+	 */
+	MetricsResumeStore(Path directory, Consumer<String> warnings) throws IOException {
+		Files.createDirectories(directory);
+		store = directory.resolve(STORE_NAME);
+		load(warnings);
+	}
+
+	/** Finds the saved state of a file, if it can still be resumed from.
+	 * @param file The file, as counted.
+	 * @param stages Requested columns, as MetricsPlan.stages().
+	 * @param channel Open channel for the file, used to check the bytes before the offset.
+	 * @return The saved state, or null if the file must be counted from the start.
+	 * @throws IOException Throws if the file cannot be stat'ed or read.
+	 */
+	Entry get(Path file, int stages, FileChannel channel) throws IOException {
+		Entry entry = entries.get(key(file, stages));
+		if (entry == null || channel.size() < entry.offset) return null;
+		if (MetricsStatIndex.stat(file.toString()).inode != entry.inode) return null;
+		return checksum(channel, entry.offset) == entry.check ? entry : null;
+	}
+
+	/** Records the state a file was counted up to.
+	 * @param file The file, as counted.
+	 * @param stages Requested columns, as MetricsPlan.stages().
+	 * @param channel Open channel for the file.
+	 * @param offset Number of bytes counted.
+	 * @param state The node's counting state after those bytes.
+	 * @throws IOException Throws if the file cannot be stat'ed or read.
+	 */
+	void put(Path file, int stages, FileChannel channel, long offset, byte[] state) throws IOException {
+		entries.put(key(file, stages), new Entry(MetricsStatIndex.stat(file.toString()).inode, offset, checksum(channel, offset), state));
+		dirty = true;
+	}
+
+	/** Writes the store back if anything changed, leaving out files that no longer exist.
+	 * @throws IOException Throws if the store cannot be written.
+	 */
+	void save() throws IOException {
+		if (!dirty) return;
+		Path temporary = Files.createTempFile(store.getParent(), STORE_NAME, ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT);
+				Map<String, Entry> kept = new ConcurrentHashMap<String, Entry>(entries);
+				kept.keySet().removeIf(key -> !Files.exists(Paths.get(key.substring(key.indexOf(':') + 1))));
+				out.writeInt(kept.size());
+				for (Map.Entry<String, Entry> item : kept.entrySet()) {
+					String key = item.getKey();
+					Entry entry = item.getValue();
+					out.writeInt(Integer.parseInt(key.substring(0, key.indexOf(':'))));
+					out.writeUTF(key.substring(key.indexOf(':') + 1));
+					out.writeLong(entry.inode);
+					out.writeLong(entry.offset);
+					out.writeLong(entry.check);
+					out.writeInt(entry.state.length);
+					out.write(entry.state);
+				}
+			}
+			Files.move(temporary, store, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+		dirty = false;
+	}
+
+	private void load(Consumer<String> warnings) {
+		try (InputStream file = Files.newInputStream(store);
+			 DataInputStream in = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT) return;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				int stages = in.readInt();
+				String path = in.readUTF();
+				long inode = in.readLong(), offset = in.readLong(), check = in.readLong();
+				byte[] state = new byte[in.readInt()];
+				in.readFully(state);
+				entries.put(stages + ":" + path, new Entry(inode, offset, check, state));
+			}
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (IOException e) {
+			warnings.accept("Ignoring unreadable resume store " + store + ": " + e.getMessage());
+			entries.clear();
+		}
+	}
+
+	private static String key(Path file, int stages) {
+		return stages + ":" + file.toAbsolutePath().normalize();
+	}
+
+	/**
+	 * @return CRC32 of the up to CHECK_LENGTH bytes that end at the offset.
+	 */
+	private static long checksum(FileChannel channel, long offset) throws IOException {
+		long from = Math.max(0, offset - CHECK_LENGTH);
+		ByteBuffer buffer = ByteBuffer.allocate((int) (offset - from));
+		while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > -1);
+		buffer.flip();
+		CRC32 crc = new CRC32();
+		crc.update(buffer);
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,244 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*	MetricsScanner.java
+*
+*	Single-pass counting engine behind MetricsFileNode.
+*	Lines, words and characters are all counted from one walk over raw bytes, so a file
+*	is read once and no String is ever built for a line.
+*
+*	The loops take the bytes eight at a time as one long and classify all eight at once with
+*	bit tricks: each test leaves the top bit of every byte that passes, and Long.bitCount() counts
+*	them. Words are read so the first byte is the most significant, which makes "the byte before"
+*	a shift right by 8, with the last byte of the previous word shifted in at the top. Words with
+*	no byte above 0x7F, nearly all of them in source code, skip the UTF-8 char weights. The few
+*	bytes after the last whole word go through the table-driven loop.
+*/
+public class MetricsScanner {
+	private static final int WHITESPACE = 1, LINE_FEED = 2, CARRIAGE_RETURN = 4;
+	private static final byte[] BYTE_CLASS = new byte[256], CHAR_WEIGHT = new byte[256];
+	private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL, HIGH_BITS = 0x8080808080808080L, FIRST_BYTE = 0x8000000000000000L;
+	static {
+		//Same whitespace set as the \s regex the line splitter used to use.
+		BYTE_CLASS[' '] = BYTE_CLASS['\t'] = BYTE_CLASS[0x0B] = BYTE_CLASS['\f'] = WHITESPACE;
+		BYTE_CLASS['\n'] = WHITESPACE | LINE_FEED;
+		BYTE_CLASS['\r'] = WHITESPACE | CARRIAGE_RETURN;
+		//Chars are UTF-16 units, as FileReader counted them: continuation bytes add nothing,
+		//and a 4-byte sequence becomes a surrogate pair.
+		for (int b = 0; b < 256; b++) {
+			if ((b & 0xC0) == 0x80) CHAR_WEIGHT[b] = 0;
+			else if ((b & 0xF8) == 0xF0) CHAR_WEIGHT[b] = 2;
+			else CHAR_WEIGHT[b] = 1;
+		}
+	}
+
+	long lines, words, chars;
+	private final boolean linesOnly;
+	private boolean inWord, lastCarriageReturn, lineOpen;
+	//How the scanned range begins, kept so merge() can stitch neighbouring ranges together.
+	private boolean started, startsInWord, startsWithLineFeed;
+
+	public MetricsScanner() {
+		this(false);
+	}
+	
+	/**
+	 * @param linesOnly Only count line breaks; words and chars stay 0.
+	 */
+	public MetricsScanner(boolean linesOnly) {
+		this.linesOnly = linesOnly;
+	}
+	
+	/** Counts every byte between the buffer's position and limit. The position is left untouched,
+	 *  so subclasses of MetricsFileNode can make their own pass over the same bytes.
+	 * @param buffer Bytes to count.
+	 */
+	public void scan(ByteBuffer buffer) {
+		scan(buffer, true);
+	}
+	
+	/** Counts like scan(ByteBuffer), optionally with the byte table alone, so MetricsScannerCheck can
+	 *  hold the long-at-a-time loops against the plain one.
+	 * @param buffer Bytes to count.
+	 * @param wordAtATime False to take every byte through the table-driven loop.
+	 */
+	void scan(ByteBuffer buffer, boolean wordAtATime) {
+		long lines = this.lines, words = this.words, chars = this.chars;
+		boolean inWord = this.inWord, lastCarriageReturn = this.lastCarriageReturn;
+		int end = buffer.limit();
+		if (buffer.position() == end) return;
+		if (!started) {
+			int first = BYTE_CLASS[buffer.get(buffer.position()) & 0xFF];
+			startsInWord = first == 0;
+			startsWithLineFeed = (first & LINE_FEED) != 0;
+			started = true;
+		}
+		if (linesOnly) {
+			scanLines(buffer, wordAtATime);
+			return;
+		}
+		boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+		int i = buffer.position();
+		//The top bit of the byte before the current word: set if it was whitespace, or a CR.
+		long spaceBefore = inWord ? 0 : FIRST_BYTE, carriageReturnBefore = lastCarriageReturn ? FIRST_BYTE : 0;
+		for (int wordsEnd = wordAtATime ? i + (end - i & ~7) : i; i < wordsEnd; i += 8) {
+			long w = buffer.getLong(i);
+			if (!bigEndian) w = Long.reverseBytes(w);
+			long space = whitespace(w), carriageReturn = equal(w, '\r');
+			long wordStart = ~space & HIGH_BITS & (space >>> 8 | spaceBefore);
+			long lineFeed = equal(w, '\n') & ~(carriageReturn >>> 8 | carriageReturnBefore);
+			words += Long.bitCount(wordStart);
+			lines += Long.bitCount(carriageReturn | lineFeed);
+			chars += 8;
+			if ((w & HIGH_BITS) != 0) {
+				//Continuation bytes are 10xxxxxx, 4-byte leads 11110xxx; shifting left lines each lower bit up under the top one.
+				long continuation = w & ~(w << 1) & HIGH_BITS;
+				long fourByteLead = w & w << 1 & w << 2 & w << 3 & ~(w << 4) & HIGH_BITS;
+				chars += Long.bitCount(fourByteLead) - Long.bitCount(continuation);
+			}
+			spaceBefore = space << 56;
+			carriageReturnBefore = carriageReturn << 56;
+		}
+		inWord = spaceBefore == 0;
+		lastCarriageReturn = carriageReturnBefore != 0;
+		for (; i < end; i++) {
+			int b = buffer.get(i) & 0xFF;
+			int type = BYTE_CLASS[b];
+			chars += CHAR_WEIGHT[b];
+			if (type == 0) {
+				if (!inWord) words++;
+				inWord = true;
+				lastCarriageReturn = false;
+				continue;
+			}
+			inWord = false;
+			if ((type & LINE_FEED) != 0) {
+				if (!lastCarriageReturn) lines++; //CR LF is a single line break
+			}
+			else if ((type & CARRIAGE_RETURN) != 0) lines++;
+			lastCarriageReturn = (type & CARRIAGE_RETURN) != 0;
+		}
+		int last = BYTE_CLASS[buffer.get(end - 1) & 0xFF];
+		lineOpen = (last & (LINE_FEED | CARRIAGE_RETURN)) == 0;
+		this.lines = lines;
+		this.words = words;
+		this.chars = chars;
+		this.inWord = inWord;
+		this.lastCarriageReturn = lastCarriageReturn;
+	}
+
+	private void scanLines(ByteBuffer buffer, boolean wordAtATime) {
+		long lines = this.lines;
+		int end = buffer.limit();
+		boolean lastCarriageReturn = this.lastCarriageReturn, bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+		int i = buffer.position();
+		long carriageReturnBefore = lastCarriageReturn ? FIRST_BYTE : 0;
+		for (int wordsEnd = wordAtATime ? i + (end - i & ~7) : i; i < wordsEnd; i += 8) {
+			long w = buffer.getLong(i);
+			if (!bigEndian) w = Long.reverseBytes(w);
+			long carriageReturn = equal(w, '\r');
+			long lineFeed = equal(w, '\n') & ~(carriageReturn >>> 8 | carriageReturnBefore);
+			lines += Long.bitCount(carriageReturn | lineFeed);
+			carriageReturnBefore = carriageReturn << 56;
+		}
+		lastCarriageReturn = carriageReturnBefore != 0;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b > '\r') lastCarriageReturn = false;
+			else if (b == '\n') {
+				if (!lastCarriageReturn) lines++;
+				lastCarriageReturn = false;
+			}
+			else if (b == '\r') {
+				lines++;
+				lastCarriageReturn = true;
+			}
+			else lastCarriageReturn = false;
+		}
+		byte last = buffer.get(end - 1);
+		lineOpen = last != '\n' && last != '\r';
+		this.lines = lines;
+		this.lastCarriageReturn = lastCarriageReturn;
+	}
+
+	/**
+	 * @return The top bit of every byte of w equal to b.
+	 */
+	private static long equal(long w, int b) {
+		long x = w ^ b * 0x0101010101010101L;
+		return ~((x & LOW_BITS) + LOW_BITS | x) & HIGH_BITS; //Exact: adding 0x7F to 7 bits never carries into the next byte
+	}
+
+	/**
+	 * @return The top bit of every byte of w that is in BYTE_CLASS's whitespace set: space, or \t through \r.
+	 */
+	private static long whitespace(long w) {
+		long low = w & LOW_BITS;
+		long atLeastTab = low + 0x7777777777777777L, pastReturn = low + 0x7272727272727272L; //Top bit set once low >= 0x09, >= 0x0E
+		return (atLeastTab & ~pastReturn & ~w | equal(w, ' ')) & HIGH_BITS;
+	}
+
+	/** Folds in the counts of the range that directly follows this one, as if both had been scanned in one pass.
+	 *  A word or CR LF pair cut in two by the boundary is only counted once. Chars need no fix-up: each byte's
+	 *  weight depends on that byte alone, so a multi-byte character is counted by whichever range holds its lead byte.
+	 * @param next Scanner that counted the following range; finish() must not have been called on either.
+	 */
+	public void merge(MetricsScanner next) {
+		if (!next.started) return;
+		if (!started) {
+			started = true;
+			startsInWord = next.startsInWord;
+			startsWithLineFeed = next.startsWithLineFeed;
+		}
+		else {
+			if (inWord && next.startsInWord) words--;
+			if (lastCarriageReturn && next.startsWithLineFeed) lines--;
+		}
+		lines += next.lines;
+		words += next.words;
+		chars += next.chars;
+		inWord = next.inWord;
+		lastCarriageReturn = next.lastCarriageReturn;
+		lineOpen = next.lineOpen;
+	}
+
+	/** Writes the state of an unfinished scan, so counting can later continue from where it stopped.
+	 * @param out Where the state is written; finish() must not have been called yet.
+	 * @throws IOException Throws if the state cannot be written.
+	 */
+	public void save(DataOutput out) throws IOException {
+		out.writeLong(lines);
+		out.writeLong(words);
+		out.writeLong(chars);
+		out.writeByte((inWord ? 1 : 0) | (lastCarriageReturn ? 2 : 0) | (lineOpen ? 4 : 0) 
+					| (started ? 8 : 0) | (startsInWord ? 16 : 0) | (startsWithLineFeed ? 32 : 0));
+	}
+	
+	/** Picks up a scan saved by save(), so the next buffer is counted as if it followed the saved bytes directly.
+	 * @param in Where the state is read from.
+	 * @throws IOException Throws if the state cannot be read.
+	 */
+	public void restore(DataInput in) throws IOException {
+		lines = in.readLong();
+		words = in.readLong();
+		chars = in.readLong();
+		int flags = in.readByte();
+		inWord = (flags & 1) != 0;
+		lastCarriageReturn = (flags & 2) != 0;
+		lineOpen = (flags & 4) != 0;
+		started = (flags & 8) != 0;
+		startsInWord = (flags & 16) != 0;
+		startsWithLineFeed = (flags & 32) != 0;
+	}
+
+	/**
+	 * Call once after the last buffer. A trailing line without a line break still counts, as it did with readLine().
+	 */
+	public void finish() {
+		if (lineOpen) lines++;
+		lineOpen = false;
+	}
+}
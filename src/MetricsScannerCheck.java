@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import picocli.CommandLine;
+import picocli.CommandLine.*;
+
+/*	MetricsScannerCheck.java
+*
+*	Self-check for the counting core, run as its own entry point:
+*		java MetricsScannerCheck [--seed=<n>] [--buffers=<n>] [--max-length=<bytes>]
+*
+*	Random buffers of ASCII text, CR/LF runs, UTF-8 and raw bytes are counted with the byte table
+*	alone, which is the reference, and then again with the long-at-a-time loops: whole, in both
+*	byte orders, from a misaligned direct buffer, as two consecutive buffers and as two merged
+*	ranges cut at every position, and through MetricsSplitCounter with pieces of a few bytes. Any
+*	count that differs from the reference is a mismatch, and the check exits 1.
+*/
+@Command(description="Checks the long-at-a-time scanner and range merging against the byte-table loop.", name="MetricsScannerCheck")
+public class MetricsScannerCheck implements Runnable {
+	private static final int MAX_REPORTED = 10;
+	private static final byte[] TEXT_BYTES = " \t\n\r\u000b\f\u0008\u000e\u001f!ab.".getBytes(StandardCharsets.ISO_8859_1);
+	private static final long[] CHUNK_SIZES = { 1, 3, 8, 13, 64 };
+
+	@Option(description = "Seed of the random generator (default: 1)", names = {"--seed"}, paramLabel="<n>")
+	long seed = 1;
+
+	@Option(description = "Number of random buffers (default: 1000)", names = {"--buffers"}, paramLabel="<n>")
+	int bufferCount = 1000;
+
+	@Option(description = "Longest random buffer; every cut point of each is checked (default: 300)", names = {"--max-length"}, paramLabel="<bytes>")
+	int maxLength = 300;
+
+	private long comparisons, mismatches;
+
+	public static void main(String[] args) {
+		MetricsScannerCheck check = new MetricsScannerCheck();
+		CommandLine.run(check, args);
+		if (check.mismatches > 0) System.exit(1);
+	}
+
+	public void run() {
+		Random random = new Random(seed);
+		try {
+			Path file = Files.createTempFile("metrics-check", ".bin");
+			try {
+				for (int i = 0; i < bufferCount; i++) {
+					byte[] bytes = buffer(random, random.nextInt(Math.max(1, maxLength) + 1));
+					Files.write(file, bytes);
+					try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+						check(i, bytes, channel, false);
+						check(i, bytes, channel, true);
+					}
+				}
+			} finally {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write check file: " + e.getMessage());
+			mismatches++;
+			return;
+		}
+		System.out.printf("%d buffers, %d comparisons, %d mismatches%n", bufferCount, comparisons, mismatches);
+	}
+
+	/** Counts one buffer every way there is and compares each result with the byte-table count.
+	 * @param index Number of the buffer, for the report.
+	 * @param bytes The buffer.
+	 * @param channel The same bytes as a file, for MetricsSplitCounter.
+	 * @param linesOnly Check the line-break-only scanner instead of the full one.
+	 */
+	private void check(int index, byte[] bytes, FileChannel channel, boolean linesOnly) {
+		MetricsScanner expected = new MetricsScanner(linesOnly);
+		expected.scan(ByteBuffer.wrap(bytes), false);
+		expected.finish();
+
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+			MetricsScanner whole = new MetricsScanner(linesOnly);
+			whole.scan(ByteBuffer.wrap(bytes).order(order));
+			compare(index, bytes, linesOnly, "whole " + order, expected, whole);
+
+			ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3).order(order);
+			direct.position(3);
+			direct.put(bytes);
+			direct.position(3);
+			MetricsScanner misaligned = new MetricsScanner(linesOnly);
+			misaligned.scan(direct);
+			compare(index, bytes, linesOnly, "direct " + order, expected, misaligned);
+		}
+
+		for (int cut = 0; cut <= bytes.length; cut++) {
+			MetricsScanner consecutive = new MetricsScanner(linesOnly);
+			consecutive.scan(range(bytes, 0, cut));
+			consecutive.scan(range(bytes, cut, bytes.length));
+			compare(index, bytes, linesOnly, "consecutive at " + cut, expected, consecutive);
+
+			MetricsScanner left = new MetricsScanner(linesOnly), right = new MetricsScanner(linesOnly);
+			left.scan(range(bytes, 0, cut));
+			right.scan(range(bytes, cut, bytes.length));
+			left.merge(right);
+			compare(index, bytes, linesOnly, "merged at " + cut, expected, left);
+		}
+
+		for (long chunkSize : CHUNK_SIZES) {
+			for (boolean mapped : new boolean[] { false, true }) {
+				MetricsScanner split = new MetricsSplitCounter(channel, 0, bytes.length, mapped, linesOnly, chunkSize).invoke();
+				compare(index, bytes, linesOnly, "split by " + chunkSize + (mapped ? " mapped" : ""), expected, split);
+			}
+		}
+	}
+
+	/**
+	 * @return A window onto bytes [from, to) of the array, with the position past 0 as in a partly read buffer.
+	 */
+	private static ByteBuffer range(byte[] bytes, int from, int to) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		buffer.limit(to);
+		buffer.position(from);
+		return buffer;
+	}
+
+	/** Finishes a scan and records whether it agrees with the reference.
+	 */
+	private void compare(int index, byte[] bytes, boolean linesOnly, String how, MetricsScanner expected, MetricsScanner actual) {
+		actual.finish();
+		comparisons++;
+		if (actual.lines == expected.lines && actual.words == expected.words && actual.chars == expected.chars) return;
+		if (mismatches++ < MAX_REPORTED)
+			System.out.printf("buffer %d (%d bytes%s), %s: lines %d/%d words %d/%d chars %d/%d%n", index, bytes.length, linesOnly ? ", lines only" : "",
+					how, actual.lines, expected.lines, actual.words, expected.words, actual.chars, expected.chars);
+	}
+
+	/** Builds one random buffer of a randomly chosen kind.
+	 * @param length Bytes to produce.
+	 * @return The buffer.
+	 */
+	private static byte[] buffer(Random random, int length) {
+		byte[] bytes = new byte[length];
+		switch (random.nextInt(4)) {
+			case 0: //Text: words, every whitespace byte, and the bytes either side of the \t..\r range
+				for (int i = 0; i < length; i++) bytes[i] = TEXT_BYTES[random.nextInt(TEXT_BYTES.length)];
+				break;
+			case 1: //Line breaks in runs, so CR LF pairs land on every offset within a long
+				for (int i = 0; i < length; i++) bytes[i] = (byte) "\r\n a".charAt(random.nextInt(random.nextBoolean() ? 2 : 4));
+				break;
+			case 2: { //UTF-8 of 1 to 4 bytes per character, cut off wherever the buffer ends
+				StringBuilder text = new StringBuilder();
+				while (text.length() < length) {
+					int kind = random.nextInt(5);
+					if (kind == 0) text.append(' ');
+					else if (kind == 1) text.append((char) ('a' + random.nextInt(26)));
+					else if (kind == 2) text.append((char) (0x80 + random.nextInt(0x780)));
+					else if (kind == 3) text.append((char) (0x800 + random.nextInt(0xD000)));
+					else text.appendCodePoint(0x10000 + random.nextInt(0x100000));
+				}
+				byte[] encoded = text.toString().getBytes(StandardCharsets.UTF_8);
+				System.arraycopy(encoded, 0, bytes, 0, length);
+				break;
+			}
+			default:
+				random.nextBytes(bytes);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.RecursiveTask;
+
+/*	MetricsSplitCounter.java
+*
+*	Counts one huge file on a fork-join pool. The file is halved until each piece is at most
+*	CHUNK_SIZE bytes, every piece is counted by its own MetricsScanner, and the results are
+*	merged back left to right so the totals equal a sequential scan.
+*/
+class MetricsSplitCounter extends RecursiveTask<MetricsScanner> {
+	private static final long serialVersionUID = 1L;
+	static final long CHUNK_SIZE = 16L << 20;
+	private static final int BUFFER_SIZE = 1 << 16;
+	
+	private final FileChannel channel;
+	private final long from, to;
+	private final boolean mapped, linesOnly;
+	private final long chunkSize;
+	
+	/**
+	 * @param channel Open channel for the file. Only positional reads are used, so pieces can share it.
+	 * @param from First byte of the range.
+	 * @param to One past the last byte of the range.
+	 * @param mapped Map each piece instead of reading it into a heap buffer.
+	 * @param linesOnly Only count line breaks, as MetricsScanner(true) does.
+	 */
+	MetricsSplitCounter(FileChannel channel, long from, long to, boolean mapped, boolean linesOnly) {
+		this(channel, from, to, mapped, linesOnly, CHUNK_SIZE);
+	}
+	/**
+	 * @param chunkSize Largest piece counted without splitting further; tiny sizes let MetricsScannerCheck stitch many pieces.
+	 */
+	MetricsSplitCounter(FileChannel channel, long from, long to, boolean mapped, boolean linesOnly, long chunkSize) {
+		this.chunkSize = Math.max(1, chunkSize);
+		this.channel = channel;
+		this.from = from;
+		this.to = to;
+		this.mapped = mapped;
+		this.linesOnly = linesOnly;
+	}
+
+	protected MetricsScanner compute() {
+		if (to - from <= chunkSize) {
+			try { return countRange(); }
+			catch (IOException e) { throw new UncheckedIOException(e); }
+		}
+		long middle = from + (to - from) / 2;
+		MetricsSplitCounter left = new MetricsSplitCounter(channel, from, middle, mapped, linesOnly, chunkSize),
+							right = new MetricsSplitCounter(channel, middle, to, mapped, linesOnly, chunkSize);
+		right.fork();
+		MetricsScanner counted = left.compute();
+		counted.merge(right.join());
+		return counted;
+	}
+	
+	private MetricsScanner countRange() throws IOException {
+		MetricsScanner scanner = new MetricsScanner(linesOnly);
+		if (mapped) {
+			scanner.scan(channel.map(MapMode.READ_ONLY, from, to - from));
+			return scanner;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long position = from;
+		while (position < to) {
+			buffer.clear();
+			buffer.limit((int) Math.min(BUFFER_SIZE, to - position));
+			int read = channel.read(buffer, position);
+			if (read < 0) break;
+			position += read;
+			buffer.flip();
+			scanner.scan(buffer);
+		}
+		return scanner;
+	}
+}
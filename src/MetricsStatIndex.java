@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/*	MetricsStatIndex.java
+*
+*	Memory-mapped table in front of MetricsCache that maps a path to the content hash it had the
+*	last time it was read, together with the file's size, modification time and inode. While that
+*	stat tuple is unchanged the stored hash is trusted, so a warm run only stats each file and never
+*	opens it; the contents are hashed again only when the tuple changes.
+*
+*	The table is open-addressed with linear probing over fixed 64-byte slots:
+*		pathHash(8) size(8) mtime(8) inode(8) contentHash(20) pathCheck(4) checksum(4) lastUsed(4)
+*	A slot is empty while its pathHash is 0. The checksum is a CRC-32 of size through pathCheck,
+*	so a slot caught half-written by another process reads as a miss. lastUsed is the day a lookup
+*	last hit the slot.
+*
+*	Several runs, or daemon requests, may share the directory. Lookups read the mapping without
+*	locking; record and rebuild hold an exclusive lock on stat.idx.lock, and pick up a table another
+*	process has swapped in before writing. Once the table is 70% full it is rebuilt into a new file
+*	swapped in by atomic rename: slots unused for EXPIRY_DAYS are dropped, the rest are kept at up
+*	to double the size, and at MAX_CAPACITY only the most recently used are kept.
+*/
+class MetricsStatIndex {
+	private static final int MAGIC = 0x4D535458, FORMAT = 2; //"MSTX"
+	private static final int HEADER_SIZE = 64, SLOT_SIZE = 64, HASH_LENGTH = 20;
+	private static final int PATH_HASH = 0, SIZE = 8, MTIME = 16, INODE = 24, CONTENT_HASH = 32, PATH_CHECK = 52, CHECKSUM = 56, LAST_USED = 60;
+	private static final int CAPACITY = 8, COUNT = 12;
+	private static final int INITIAL_CAPACITY = 1 << 12, MAX_CAPACITY = 1 << 20;
+	private static final int EXPIRY_DAYS = 30;
+	//A file modified this recently could change again within the same mtime tick, so it is not indexed.
+	private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+	private static final String INDEX_NAME = "stat.idx", LOCK_NAME = "stat.idx.lock";
+	//A JVM may hold only one lock on a file, so indexes on the same directory in one process queue here first.
+	private static final ConcurrentHashMap<Path, Object> DIRECTORY_MONITORS = new ConcurrentHashMap<>();
+	
+	private final Path file, lockFile;
+	private final Object monitor;
+	private MappedByteBuffer slots;
+	private Object fileKey;	//Identity of the file slots maps, to notice when another process swaps a new one in
+	private int capacity;
+	
+	/** Snapshot of the attributes the index compares. */
+	static final class Stat {
+		final long size, modified, inode;
+		
+		Stat(long size, long modified, long inode) {
+			this.size = size;
+			this.modified = modified;
+			this.inode = inode;
+		}
+	}
+	
+	/** Opens the index in the given directory, creating an empty one if there is none or it is unreadable.
+	 * @param directory Directory shared with the result cache.
+	 * @throws IOException Throws if the index cannot be created.
+	 */
+	MetricsStatIndex(Path directory) throws IOException {
+		file = directory.resolve(INDEX_NAME);
+		lockFile = directory.resolve(LOCK_NAME);
+		monitor = DIRECTORY_MONITORS.computeIfAbsent(directory.toAbsolutePath().normalize(), key -> new Object());
+		synchronized (monitor) {
+			try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				lockChannel.lock(); //Released when the channel closes
+				if (!open()) replace(INITIAL_CAPACITY, new int[0]);
+			}
+		}
+	}
+	
+	/** Reads a file's stat tuple with a single stat call.
+	 * @param filePath File to stat.
+	 * @return The tuple.
+	 * @throws IOException Throws if the file cannot be stat'ed.
+	 */
+	static Stat stat(String filePath) throws IOException {
+		Path path = Paths.get(filePath);
+		try {
+			Map<String, Object> attributes = Files.readAttributes(path, "unix:size,lastModifiedTime,ino");
+			return new Stat((Long) attributes.get("size"), 
+							((FileTime) attributes.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS), 
+							(Long) attributes.get("ino"));
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			Object key = attributes.fileKey();
+			return new Stat(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), key == null ? 0 : key.hashCode());
+		}
+	}
+	
+	/** Looks the path up without locking; a slot another process is writing fails its checksum and misses.
+	 * @return The content hash recorded for the path, or null if the path is unknown or its stat tuple has changed.
+	 */
+	synchronized byte[] lookup(String filePath, Stat stat) {
+		filePath = absolute(filePath);
+		long pathHash = pathHash(filePath);
+		int pathCheck = filePath.hashCode();
+		int slot = find(pathHash, pathCheck);
+		if (slot < 0) return null;
+		int base = offset(slot);
+		if (slots.getLong(base + SIZE) != stat.size || slots.getLong(base + MTIME) != stat.modified 
+				|| slots.getLong(base + INODE) != stat.inode) return null;
+		byte[] hash = new byte[HASH_LENGTH];
+		for (int i = 0; i < HASH_LENGTH; i++) hash[i] = slots.get(base + CONTENT_HASH + i);
+		if (slots.getInt(base + CHECKSUM) != checksum(base)) return null;
+		int today = today();
+		if (slots.getInt(base + LAST_USED) != today) slots.putInt(base + LAST_USED, today); //Only dirties the page once a day
+		return hash;
+	}
+	
+	/** Records the content hash a path had under the given stat tuple.
+	 * @throws IOException Throws if the index cannot be locked, or has to be rebuilt and cannot.
+	 */
+	synchronized void record(String filePath, Stat stat, byte[] contentHash) throws IOException {
+		if (System.currentTimeMillis() * 1_000_000L - stat.modified < RACY_NANOS) return;
+		filePath = absolute(filePath);
+		long pathHash = pathHash(filePath);
+		int pathCheck = filePath.hashCode();
+		synchronized (monitor) {
+			try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				lockChannel.lock(); //Released when the channel closes
+				if (!current() && !open()) replace(INITIAL_CAPACITY, new int[0]);
+				int slot = find(pathHash, pathCheck);
+				if (slot < 0) {
+					int count = slots.getInt(COUNT);
+					if ((count + 1) * 10L > capacity * 7L) {
+						rebuild();
+						slot = find(pathHash, pathCheck);
+						count = slots.getInt(COUNT);
+					}
+					slot = -slot - 1;
+					slots.putInt(COUNT, count + 1);
+				}
+				int base = offset(slot);
+				slots.putLong(base + SIZE, stat.size);
+				slots.putLong(base + MTIME, stat.modified);
+				slots.putLong(base + INODE, stat.inode);
+				for (int i = 0; i < HASH_LENGTH; i++) slots.put(base + CONTENT_HASH + i, contentHash[i]);
+				slots.putInt(base + PATH_CHECK, pathCheck);
+				slots.putInt(base + LAST_USED, today());
+				slots.putInt(base + CHECKSUM, checksum(base)); //Written after the fields: an update read midway fails it
+				slots.putLong(base + PATH_HASH, pathHash); //Written last: a new slot only counts once this is set
+			}
+		}
+	}
+	
+	/**
+	 * Flushes the mapping to disk.
+	 */
+	synchronized void save() {
+		slots.force();
+	}
+	
+	/**
+	 * @return The slot holding the path, or -(slot + 1) for the empty slot where it would go.
+	 */
+	private int find(long pathHash, int pathCheck) {
+		int mask = capacity - 1;
+		for (int slot = (int) (pathHash ^ (pathHash >>> 32)) & mask;; slot = (slot + 1) & mask) {
+			long stored = slots.getLong(offset(slot) + PATH_HASH);
+			if (stored == 0) return -slot - 1;
+			if (stored == pathHash && slots.getInt(offset(slot) + PATH_CHECK) == pathCheck) return slot;
+		}
+	}
+	
+	/**
+	 * Rebuilds the full table without its torn and expired slots, at up to twice the size, keeping only
+	 * the most recently used slots if even MAX_CAPACITY would be too full. Called with the lock held.
+	 */
+	private void rebuild() throws IOException {
+		int expired = today() - EXPIRY_DAYS, live = 0;
+		int[] kept = new int[capacity];
+		for (int slot = 0; slot < capacity; slot++) {
+			int base = offset(slot);
+			if (slots.getLong(base + PATH_HASH) == 0 || slots.getInt(base + CHECKSUM) != checksum(base)) continue;
+			if (slots.getInt(base + LAST_USED) < expired) continue;
+			kept[live++] = slot;
+		}
+		int newCapacity = capacity;
+		while ((live + 1) * 10L > newCapacity * 7L && newCapacity < MAX_CAPACITY) newCapacity *= 2;
+		if ((live + 1) * 10L > newCapacity * 7L) {
+			//Full at the cap: keep the most recently used half, so the next rebuild is as far off again.
+			Integer[] byUse = new Integer[live];
+			for (int i = 0; i < live; i++) byUse[i] = kept[i];
+			Arrays.sort(byUse, Comparator.comparingInt((Integer slot) -> slots.getInt(offset(slot) + LAST_USED)).reversed());
+			live = (int) (MAX_CAPACITY * 7L / 20);
+			for (int i = 0; i < live; i++) kept[i] = byUse[i];
+		}
+		replace(newCapacity, Arrays.copyOf(kept, live));
+	}
+	
+	/** Writes a new table holding the given slots of the current one, swaps it in by atomic rename
+	 *  and maps it. Called with the lock held.
+	 * @param newCapacity Slots in the new table, a power of two.
+	 * @param kept Slots of the current table to copy over.
+	 */
+	private void replace(int newCapacity, int[] kept) throws IOException {
+		Path temporary = Files.createTempFile(file.getParent(), INDEX_NAME, ".tmp");
+		try {
+			create(temporary, newCapacity);
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				int mask = newCapacity - 1;
+				MappedByteBuffer table = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+				for (int slot : kept) {
+					long pathHash = slots.getLong(offset(slot) + PATH_HASH);
+					int target = (int) (pathHash ^ (pathHash >>> 32)) & mask;
+					while (table.getLong(HEADER_SIZE + target * SLOT_SIZE + PATH_HASH) != 0) target = (target + 1) & mask;
+					for (int i = 0; i < SLOT_SIZE; i++) table.put(HEADER_SIZE + target * SLOT_SIZE + i, slots.get(offset(slot) + i));
+				}
+				table.putInt(COUNT, kept.length);
+				table.force();
+			}
+			Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+		if (!open()) throw new IOException("Could not open the rebuilt " + file);
+	}
+	
+	/**
+	 * @return False if another process has swapped a new table in, or removed it, since this one was mapped.
+	 */
+	private boolean current() throws IOException {
+		try {
+			return fileKey != null && fileKey.equals(Files.readAttributes(file, BasicFileAttributes.class).fileKey());
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return False if there is no usable index file.
+	 */
+	private boolean open() throws IOException {
+		if (!Files.exists(file)) return false;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining() && channel.read(header) > -1);
+			header.flip();
+			if (header.remaining() < 16 || header.getInt(0) != MAGIC || header.getInt(4) != FORMAT) return false;
+			int tableCapacity = header.getInt(CAPACITY);
+			if (Integer.bitCount(tableCapacity) != 1 || channel.size() != HEADER_SIZE + (long) tableCapacity * SLOT_SIZE) return false;
+			slots = channel.map(MapMode.READ_WRITE, 0, channel.size()); //The mapping stays valid after the channel closes
+			capacity = tableCapacity;
+			fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+			return true;
+		}
+	}
+	
+	private static void create(Path target, int capacity) throws IOException {
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+				StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(FORMAT).putInt(capacity).putInt(0).clear();
+			channel.write(header);
+			//Extend the file; the slots read back as zeroes, i.e. empty.
+			channel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) capacity * SLOT_SIZE - 1);
+		}
+	}
+	
+	/**
+	 * @return CRC-32 of the slot's bytes from its size up to its checksum.
+	 */
+	private int checksum(int base) {
+		CRC32 crc = new CRC32();
+		ByteBuffer view = slots.duplicate();
+		view.limit(base + CHECKSUM).position(base + SIZE);
+		crc.update(view);
+		return (int) crc.getValue();
+	}
+	
+	private static int today() {
+		return (int) TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis());
+	}
+	
+	private static String absolute(String filePath) {
+		return Paths.get(filePath).toAbsolutePath().normalize().toString();
+	}
+	
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+	
+	/**
+	 * @return 64-bit FNV-1a of the path's UTF-8 bytes, never 0.
+	 */
+	private static long pathHash(String filePath) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : filePath.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+}
@@ -0,0 +1,139 @@
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*	MetricsStats.java
+*
+*	Run statistics for --stats: wall and CPU time per phase, file and byte throughput, GC time and
+*	the slowest files. CPU time is the whole process's, read at each phase boundary, so it includes
+*	every worker thread. Per-file figures go into LongAdders and a small heap that most files never
+*	touch. When --stats is off no MetricsStats exists and none of this runs.
+*/
+class MetricsStats {
+	/** Phases of a run, in the order they happen. Discovery runs alongside analysis, so only its wall time is known. */
+	enum Phase { DISCOVERY, ANALYSIS, SAVE, SORT, PRINT }
+
+	private static final double MS = 1e6, MB = 1 << 20;
+
+	private final com.sun.management.OperatingSystemMXBean os =
+			(com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+	private final long[] wall = new long[Phase.values().length], cpu = new long[Phase.values().length];
+	private final boolean[] ran = new boolean[Phase.values().length];
+	private final long startWall, startCpu, startGcTime, startGcCount;
+	private Phase current;
+	private long phaseWall, phaseCpu;
+
+	private final LongAdder files = new LongAdder(), bytes = new LongAdder();
+	private final int slowestCount;
+	private final PriorityQueue<FileTime> slowest = new PriorityQueue<FileTime>((a, b) -> Long.compare(a.nanos, b.nanos));
+	private volatile long slowThreshold = -1;	// fastest time still in a full heap; anything quicker is skipped without locking
+
+	private static final class FileTime {
+		final String path;
+		final long nanos, bytes;
+
+		FileTime(String path, long nanos, long bytes) {
+			this.path = path;
+			this.nanos = nanos;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * @param slowestCount Number of slowest files to report.
+	 */
+	MetricsStats(int slowestCount) {
+		this.slowestCount = Math.max(0, slowestCount);
+		startWall = System.nanoTime();
+		startCpu = os.getProcessCpuTime();
+		startGcTime = gcTime();
+		startGcCount = gcCount();
+	}
+
+	/** Starts timing a phase, ending the one before it.
+	 * @param phase Phase that starts now.
+	 */
+	void begin(Phase phase) {
+		end();
+		current = phase;
+		phaseWall = System.nanoTime();
+		phaseCpu = os.getProcessCpuTime();
+	}
+
+	/**
+	 * Ends the current phase, if one is running.
+	 */
+	void end() {
+		if (current == null) return;
+		wall[current.ordinal()] += System.nanoTime() - phaseWall;
+		cpu[current.ordinal()] += os.getProcessCpuTime() - phaseCpu;
+		ran[current.ordinal()] = true;
+		current = null;
+	}
+
+	/** Records the wall time of a phase measured elsewhere, such as the background directory walk.
+	 */
+	void wall(Phase phase, long nanos) {
+		wall[phase.ordinal()] += nanos;
+		ran[phase.ordinal()] = true;
+	}
+
+	/** Records one analyzed file. Safe to call from any thread.
+	 * @param path File as named.
+	 * @param nanos Time its analysis took.
+	 * @param size Its size in bytes.
+	 */
+	void file(String path, long nanos, long size) {
+		files.increment();
+		bytes.add(size);
+		if (nanos <= slowThreshold) return;
+		synchronized (slowest) {
+			if (slowestCount == 0) return;
+			slowest.add(new FileTime(path, nanos, size));
+			if (slowest.size() > slowestCount) slowest.poll();
+			if (slowest.size() == slowestCount) slowThreshold = slowest.peek().nanos;
+		}
+	}
+
+	/** Prints the report.
+	 * @param out Where the report goes.
+	 */
+	void report(PrintStream out) {
+		end();
+		long totalWall = System.nanoTime() - startWall, totalCpu = os.getProcessCpuTime() - startCpu;
+		out.printf(Locale.ROOT, "%-10s %10s %10s%n", "phase", "wall ms", "cpu ms");
+		for (Phase phase : Phase.values()) {
+			if (!ran[phase.ordinal()]) continue;
+			if (phase == Phase.DISCOVERY) out.printf(Locale.ROOT, "%-10s %10.1f %10s%n", "discovery", wall[phase.ordinal()] / MS, "-");
+			else out.printf(Locale.ROOT, "%-10s %10.1f %10.1f%n", phase.name().toLowerCase(Locale.ROOT), wall[phase.ordinal()] / MS, cpu[phase.ordinal()] / MS);
+		}
+		out.printf(Locale.ROOT, "%-10s %10.1f %10.1f%n", "run", totalWall / MS, totalCpu / MS);
+		double analysisSeconds = Math.max(1, wall[Phase.ANALYSIS.ordinal()]) / 1e9;
+		out.printf(Locale.ROOT, "files %d, %.1f files/s; bytes %d, %.1f MB/s%n", files.sum(), files.sum() / analysisSeconds,
+					bytes.sum(), bytes.sum() / MB / analysisSeconds);
+		out.printf(Locale.ROOT, "gc %d collections, %d ms%n", gcCount() - startGcCount, gcTime() - startGcTime);
+		List<FileTime> slow;
+		synchronized (slowest) { slow = new ArrayList<FileTime>(slowest); }
+		if (slow.isEmpty()) return;
+		slow.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+		out.printf("slowest files%n%10s %12s %s%n", "ms", "bytes", "path");
+		for (FileTime file : slow) out.printf(Locale.ROOT, "%10.2f %12d %s%n", file.nanos / MS, file.bytes, file.path);
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) time += Math.max(0, collector.getCollectionTime());
+		return time;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, collector.getCollectionCount());
+		return count;
+	}
+}
@@ -0,0 +1,79 @@
+import java.util.Arrays;
+
+/*	MetricsSymbolTable.java
+*
+*	Interns tokens into dense int ids. A token is hashed and compared straight out of the lexer's
+*	char buffer, and its characters are only copied into the shared pool the first time it is seen,
+*	so a file with millions of repeated identifiers allocates no String per token.
+*/
+class MetricsSymbolTable {
+	private char[] pool = new char[1024];	// characters of every symbol, back to back
+	private int poolLength;
+	private int[] offsets = new int[64], lengths = new int[64], hashes = new int[64];
+	private int[] index = new int[128];		// open-addressing table of id + 1, 0 if empty
+	private int size;
+
+	/** Returns the id of a token, adding it if it is new.
+	 * @param text Buffer holding the token.
+	 * @param length Length of the token.
+	 * @return The token's id; ids run from 0 in order of first appearance.
+	 */
+	int intern(char[] text, int length) {
+		int hash = hash(text, length), mask = index.length - 1;
+		int slot = hash & mask;
+		for (int entry; (entry = index[slot]) != 0; slot = (slot + 1) & mask) {
+			int id = entry - 1;
+			if (hashes[id] == hash && equals(id, text, length)) return id;
+		}
+		return add(slot, hash, text, length);
+	}
+
+	int intern(String text) {
+		return intern(text.toCharArray(), text.length());
+	}
+
+	int size() {
+		return size;
+	}
+
+	private int add(int slot, int hash, char[] text, int length) {
+		int id = size++;
+		if (id == offsets.length) {
+			offsets = Arrays.copyOf(offsets, id * 2);
+			lengths = Arrays.copyOf(lengths, id * 2);
+			hashes = Arrays.copyOf(hashes, id * 2);
+		}
+		if (poolLength + length > pool.length) pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolLength + length));
+		System.arraycopy(text, 0, pool, poolLength, length);
+		offsets[id] = poolLength;
+		lengths[id] = length;
+		hashes[id] = hash;
+		poolLength += length;
+		index[slot] = id + 1;
+		if (size * 2 > index.length) rehash();
+		return id;
+	}
+
+	private boolean equals(int id, char[] text, int length) {
+		if (lengths[id] != length) return false;
+		for (int i = 0, offset = offsets[id]; i < length; i++) if (pool[offset + i] != text[i]) return false;
+		return true;
+	}
+
+	private void rehash() {
+		index = new int[index.length * 2];
+		int mask = index.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = hashes[id] & mask;
+			while (index[slot] != 0) slot = (slot + 1) & mask;
+			index[slot] = id + 1;
+		}
+	}
+
+	private static int hash(char[] text, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++) h = 31 * h + text[i];
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,113 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/*	MetricsTotals.java
+*
+*	Running 64-bit sums of every column, reported as an IMetrics named "total" so the total row
+*	prints exactly like a file row. Each column is a LongAdder: workers finishing files at the same
+*	time add into separate cells instead of fighting over one field, and the cells are only folded
+*	together when a total is read.
+*/
+class MetricsTotals implements IMetrics {
+	private static final int LINES = 0, WORDS = 1, CHARS = 2, SOURCE = 3, COMMENTS = 4,
+							HALSTEAD_n1 = 5, HALSTEAD_n2 = 6, HALSTEAD_N1 = 7, HALSTEAD_N2 = 8,
+							VOCABULARY = 9, LENGTH = 10, CALC_LENGTH = 11, VOLUME = 12, DIFFICULTY = 13,
+							EFFORT = 14, TIME = 15, BUGS = 16, COLUMNS = 17;
+
+	private final LongAdder[] sums = new LongAdder[COLUMNS];
+
+	MetricsTotals() {
+		for (int i = 0; i < COLUMNS; i++) sums[i] = new LongAdder();
+	}
+
+	/** Adds one file's metrics to the totals, or takes them back out. Safe to call from any thread.
+	 * @param item File metrics.
+	 * @param sign 1 to add, -1 to subtract.
+	 */
+	void add(IMetrics item, int sign) {
+		sums[LINES].add(sign * item.getLineCount());
+		sums[WORDS].add(sign * item.getWordCount());
+		sums[CHARS].add(sign * item.getCharacterCount());
+		sums[SOURCE].add(sign * item.getSourceLineCount());
+		sums[COMMENTS].add(sign * item.getCommentLineCount());
+		sums[HALSTEAD_n1].add(sign * item.getHalsteadn1());
+		sums[HALSTEAD_n2].add(sign * item.getHalsteadn2());
+		sums[HALSTEAD_N1].add(sign * item.getHalsteadN1());
+		sums[HALSTEAD_N2].add(sign * item.getHalsteadN2());
+		sums[VOCABULARY].add(sign * item.getHalsteadVocabulary());
+		sums[LENGTH].add(sign * item.getHalsteadProgramLength());
+		sums[CALC_LENGTH].add(sign * item.getHalsteadCalculatedProgramLenght());
+		sums[VOLUME].add(sign * item.getHalsteadVolume());
+		sums[DIFFICULTY].add(sign * item.getHalsteadDifficulty());
+		sums[EFFORT].add(sign * item.getHalsteadEffort());
+		sums[TIME].add(sign * item.getHalsteadTime());
+		sums[BUGS].add(sign * item.getHalsteadBugs());
+	}
+
+	/**
+	 * Totals are not read from a file.
+	 */
+	public boolean setPath(String path) {
+		return false;
+	}
+	public String getPath() {
+		return "total";
+	}
+	public boolean isSource() {
+		return false;
+	}
+
+	public long getLineCount() {
+		return sums[LINES].sum();
+	}
+	public long getWordCount() {
+		return sums[WORDS].sum();
+	}
+	public long getCharacterCount() {
+		return sums[CHARS].sum();
+	}
+
+	public long getSourceLineCount() {
+		return sums[SOURCE].sum();
+	}
+	public long getCommentLineCount() {
+		return sums[COMMENTS].sum();
+	}
+
+	public long getHalsteadn1() {
+		return sums[HALSTEAD_n1].sum();
+	}
+	public long getHalsteadn2() {
+		return sums[HALSTEAD_n2].sum();
+	}
+	public long getHalsteadN1() {
+		return sums[HALSTEAD_N1].sum();
+	}
+	public long getHalsteadN2() {
+		return sums[HALSTEAD_N2].sum();
+	}
+
+	public long getHalsteadVocabulary() {
+		return sums[VOCABULARY].sum();
+	}
+	public long getHalsteadProgramLength() {
+		return sums[LENGTH].sum();
+	}
+	public long getHalsteadCalculatedProgramLenght() {
+		return sums[CALC_LENGTH].sum();
+	}
+	public long getHalsteadVolume() {
+		return sums[VOLUME].sum();
+	}
+	public long getHalsteadDifficulty() {
+		return sums[DIFFICULTY].sum();
+	}
+	public long getHalsteadEffort() {
+		return sums[EFFORT].sum();
+	}
+	public long getHalsteadTime() {
+		return sums[TIME].sum();
+	}
+	public long getHalsteadBugs() {
+		return sums[BUGS].sum();
+	}
+}
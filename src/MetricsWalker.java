@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/*	MetricsWalker.java
+*
+*	Walks directory trees on a fork-join pool, one task per directory, and hands every matching
+*	file to the caller through a queue while the walk is still going, so analysis of the first
+*	files overlaps discovery of the rest. Plain files given as roots are passed through unfiltered.
+*	Roots are taken in the order given: a plain file is handed out where it stands, and a directory
+*	is walked to the end before the next root, so each file can be told apart by the root it came from.
+*	Symbolic links to directories are not followed. A directory that cannot be listed is reported
+*	to the caller's problem handler and the rest of the walk goes on.
+*/
+class MetricsWalker implements Iterator<String> {
+	private static final Found END = new Found(null, -1); //Compared by identity
+	
+	private final BlockingQueue<Found> found = new LinkedBlockingQueue<Found>();
+	private final Filter filter;
+	private final Consumer<String> problems;
+	private Found next;
+	private int root = -1;
+	private volatile long walkNanos;	//How long the walk took, once it has finished
+	
+	/** A file and the index of the root it was found under. */
+	private static final class Found {
+		final String path;
+		final int root;
+		
+		Found(String path, int root) {
+			this.path = path;
+			this.root = root;
+		}
+	}
+	
+	/** Include, exclude and extension rules for files found under a root. */
+	static final class Filter {
+		private final List<PathMatcher> includes, excludes;
+		private final List<String> extensions = new ArrayList<String>();
+		
+		/**
+		 * @param includeGlobs If any are given, only files matching one of them are accepted.
+		 * @param excludeGlobs Files and directories matching any of these are skipped.
+		 * @param extensions If any are given, only files with one of these extensions are accepted, e.g. "java" or ".c".
+		 */
+		Filter(List<String> includeGlobs, List<String> excludeGlobs, List<String> extensions) {
+			includes = toMatchers(includeGlobs);
+			excludes = toMatchers(excludeGlobs);
+			if (extensions != null) 
+				for (String extension : extensions) this.extensions.add(extension.startsWith(".") ? extension : "." + extension);
+		}
+		
+		boolean accepts(Path root, Path file) {
+			Path relative = root.relativize(file);
+			if (matches(excludes, relative)) return false;
+			if (!includes.isEmpty() && !matches(includes, relative)) return false;
+			if (extensions.isEmpty()) return true;
+			return extensions.contains(MetricsLib.getFileExtension(file.getFileName().toString()));
+		}
+		
+		/**
+		 * @return True if nothing under the directory should be looked at.
+		 */
+		boolean prunes(Path root, Path directory) {
+			return matches(excludes, root.relativize(directory));
+		}
+	}
+	
+	/** Starts walking right away on a background thread.
+	 * @param roots Files and directories to walk.
+	 * @param base Directory relative roots are resolved against, or null for the current one. Found files
+	 *        are still named relative to the root as it was given.
+	 * @param filter Rules for which files under a directory are returned.
+	 * @param threads Number of threads listing directories.
+	 * @param problems Told about each directory that could not be listed, from whichever thread listed it.
+	 */
+	MetricsWalker(List<String> roots, Path base, Filter filter, int threads, Consumer<String> problems) {
+		this.filter = filter;
+		this.problems = problems;
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		Thread walker = new Thread(() -> {
+			long start = System.nanoTime();
+			try {
+				for (int index = 0; index < roots.size(); index++) {
+					String root = roots.get(index);
+					Path path = base == null ? Paths.get(root) : base.resolve(root);
+					if (Files.isDirectory(path)) pool.invoke(new WalkTask(Paths.get(root), path, path, index));
+					else found.add(new Found(root, index)); //Explicit files always count, missing ones are reported by analysis
+				}
+			} finally {
+				pool.shutdown();
+				walkNanos = System.nanoTime() - start;
+				found.add(END);
+			}
+		}, "metrics-walker");
+		walker.setDaemon(true);
+		walker.start();
+	}
+	
+	/**
+	 * Blocks until the next file has been found or the walk has finished.
+	 */
+	public boolean hasNext() {
+		if (next == null) {
+			try { next = found.take(); }
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while walking directories", e);
+			}
+		}
+		return next != END;
+	}
+	
+	/**
+	 * @return Wall time of the whole walk in nanoseconds; only final once hasNext() has returned false.
+	 */
+	long walkNanos() {
+		return walkNanos;
+	}
+	
+	public String next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		String file = next.path;
+		root = next.root;
+		next = null;
+		return file;
+	}
+	
+	/**
+	 * @return Index among the roots of the one the file last returned by next() was found under, or given as.
+	 */
+	int root() {
+		return root;
+	}
+	
+	/**
+	 * Globs without a '/' are tried against the file name alone, the rest against the path under the root.
+	 */
+	private static boolean matches(List<PathMatcher> matchers, Path relative) {
+		for (PathMatcher matcher : matchers) 
+			if (matcher.matches(relative) || (relative.getFileName() != null && matcher.matches(relative.getFileName()))) return true;
+		return false;
+	}
+	
+	private static List<PathMatcher> toMatchers(List<String> globs) {
+		List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+		if (globs != null) for (String glob : globs) matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+		return matchers;
+	}
+	
+	/** Lists one directory, queues its files and forks a task per subdirectory. */
+	private class WalkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path given, root, directory;
+		private final int index;
+		
+		/**
+		 * @param given The root as it was named on the command line.
+		 * @param root The root as it is opened.
+		 * @param directory Directory under the root to list.
+		 * @param index Index of the root among all the roots.
+		 */
+		WalkTask(Path given, Path root, Path directory, int index) {
+			this.given = given;
+			this.root = root;
+			this.directory = directory;
+			this.index = index;
+		}
+		
+		protected void compute() {
+			List<WalkTask> subdirectories = new ArrayList<WalkTask>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+				for (Path entry : entries) {
+					if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+						if (!filter.prunes(root, entry)) subdirectories.add(new WalkTask(given, root, entry, index));
+					}
+					else if (Files.isRegularFile(entry) && filter.accepts(root, entry)) found.add(new Found(given.resolve(root.relativize(entry)).toString(), index));
+				}
+			} catch (IOException e) {
+				problems.accept("Could not list directory " + directory + ": " + e.getMessage());
+			} catch (DirectoryIteratorException e) { //A read error partway through the listing; what was listed is still walked
+				problems.accept("Could not list directory " + directory + ": " + e.getCause().getMessage());
+			}
+			invokeAll(subdirectories);
+		}
+	}
+}
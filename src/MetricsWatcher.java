@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/*	MetricsWatcher.java
+*
+*	Long-running watch mode. Keeps the latest metrics of every watched file in memory, registers
+*	their directories with a WatchService, and re-analyzes only the files an event names. Events
+*	arriving close together are collected into one batch, so a save that touches a file several
+*	times is analyzed once. Each change is reported to a Listener, which keeps the totals.
+*/
+class MetricsWatcher {
+	private static final long SETTLE_MILLIS = 50;
+	
+	/** Told about every file whose metrics changed. */
+	interface Listener {
+		/**
+		 * @param previous Metrics before the change, null for a new file.
+		 * @param current Metrics after the change, null if the file is gone.
+		 */
+		void changed(IMetrics previous, IMetrics current);
+		
+		/**
+		 * Called once a batch of changes has been reported.
+		 */
+		void settled();
+	}
+	
+	private final WatchService watchService;
+	private final Function<String, IMetrics> analyzer;
+	private final Listener listener;
+	private final MetricsWalker.Filter filter;
+	private final Path base;
+	private final Map<String, IMetrics> table = new HashMap<String, IMetrics>();	// file as named -> latest metrics
+	private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();	// key -> directory as named
+	private final Map<Path, Path> trees = new HashMap<Path, Path>();				// directory as named -> root it was found under
+	private final Set<Path> registered = new HashSet<Path>();
+	
+	/**
+	 * @param analyzer Analyzes one file, named the way it should be reported.
+	 * @param listener Receives the changes.
+	 * @param filter Rules for new files appearing under a watched tree.
+	 * @param base Directory relative names resolve against, or null for the current one.
+	 * @throws IOException Throws if no watch service is available.
+	 */
+	MetricsWatcher(Function<String, IMetrics> analyzer, Listener listener, MetricsWalker.Filter filter, Path base) throws IOException {
+		this.analyzer = analyzer;
+		this.listener = listener;
+		this.filter = filter;
+		this.base = base;
+		watchService = FileSystems.getDefault().newWatchService();
+	}
+	
+	/** Watches a file that has already been analyzed.
+	 * @param metrics The file's current metrics.
+	 * @throws IOException Throws if its directory cannot be watched.
+	 */
+	void watchFile(IMetrics metrics) throws IOException {
+		table.put(metrics.getPath(), new MetricsResult(metrics));
+		Path parent = Paths.get(metrics.getPath()).getParent();
+		register(parent == null ? Paths.get("") : parent);
+	}
+	
+	/** Watches a directory tree, including subdirectories created later.
+	 * @param root Directory as it was named.
+	 * @throws IOException Throws if a directory cannot be watched.
+	 */
+	void watchTree(String root) throws IOException {
+		registerTree(Paths.get(root), Paths.get(root), null);
+	}
+	
+	/**
+	 * Blocks, handling events, until the thread is interrupted.
+	 */
+	void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+				TreeSet<String> changed = new TreeSet<String>();
+				boolean overflow = false;
+				for (; key != null; key = watchService.poll()) {
+					Path directory = directories.get(key);
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) overflow = true;
+						else if (directory != null) changed.add(directory.resolve((Path) event.context()).toString());
+					}
+					if (!key.reset()) registered.remove(directories.remove(key));
+				}
+				if (overflow) changed.addAll(table.keySet()); //Events were lost; recheck everything
+				boolean reported = false;
+				for (String file : changed) reported |= update(file);
+				if (reported) listener.settled();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * @return True if a change was reported to the listener.
+	 */
+	private boolean update(String file) {
+		Path named = Paths.get(file), actual = resolve(named);
+		IMetrics previous = table.get(file);
+		if (Files.isDirectory(actual, LinkOption.NOFOLLOW_LINKS)) {
+			Path root = trees.get(named.getParent() == null ? Paths.get("") : named.getParent());
+			boolean reported = false;
+			if (root != null && !filter.prunes(root, named)) {
+				//Files can land in a new directory before it is registered, so pick up whatever is already there
+				List<Path> found = new ArrayList<Path>();
+				try { registerTree(root, named, found); }
+				catch (IOException e) { System.err.println("Could not watch " + file + ": " + e.getMessage()); }
+				for (Path entry : found) reported |= update(entry.toString());
+			}
+			return reported;
+		}
+		if (!Files.isRegularFile(actual)) {
+			if (previous != null) {
+				table.remove(file);
+				listener.changed(previous, null);
+				return true;
+			}
+			return false;
+		}
+		if (previous == null && !isTracked(named)) return false;
+		IMetrics current;
+		try { current = new MetricsResult(analyzer.apply(file)); }
+		catch (RuntimeException e) { //Typically the file went away again mid-read; its delete event follows
+			System.err.println("Could not analyze " + file + ": " + e.getMessage());
+			return false;
+		}
+		table.put(file, current);
+		listener.changed(previous, current);
+		return true;
+	}
+	
+	/**
+	 * @return True for a new file the filter accepts under a watched tree.
+	 */
+	private boolean isTracked(Path named) {
+		Path root = trees.get(named.getParent() == null ? Paths.get("") : named.getParent());
+		return root != null && filter.accepts(root, named);
+	}
+	
+	/**
+	 * @param found Collects files already in the tree, unless null.
+	 */
+	private void registerTree(Path root, Path directory, List<Path> found) throws IOException {
+		register(directory);
+		trees.put(directory, root);
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(resolve(directory))) {
+			for (Path entry : entries) {
+				Path named = directory.resolve(entry.getFileName());
+				if (!Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+					if (found != null) found.add(named);
+				}
+				else if (!filter.prunes(root, named)) registerTree(root, named, found);
+			}
+		}
+	}
+	
+	private void register(Path directory) throws IOException {
+		if (!registered.add(directory)) return;
+		WatchKey key = resolve(directory).register(watchService, StandardWatchEventKinds.ENTRY_CREATE, 
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		directories.put(key, directory);
+	}
+	
+	private Path resolve(Path named) {
+		return base == null ? named : base.resolve(named);
+	}
+}
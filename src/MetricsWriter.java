@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/*	MetricsWriter.java
+*
+*	Machine-readable output: one NDJSON object or one CSV record per file. Rows are appended
+*	straight into a reused byte buffer, numbers digit by digit and names byte by byte, so no format
+*	string is parsed and nothing is allocated per cell. The buffer goes to the stream only when it
+*	is nearly full, and once more at the end.
+*
+*	Unlike the table these formats need no column widths, so rows can be written as soon as they
+*	are ready, and no total row is written; consumers sum the rows themselves.
+*/
+class MetricsWriter {
+	/** TABLE is the aligned text layout MetricsApp prints itself. */
+	public enum Format { TABLE, NDJSON, CSV }
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private final OutputStream out;
+	private final boolean json;
+	private final byte[][] keys;		// column -> NDJSON key with quotes and colon, or CSV header cell
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int length, column;
+
+	/**
+	 * @param out Where rows are written.
+	 * @param format NDJSON or CSV.
+	 * @param columns Names of the numeric columns, in the order their values will be given.
+	 */
+	MetricsWriter(OutputStream out, Format format, String... columns) {
+		if (format == Format.TABLE) throw new IllegalArgumentException("MetricsWriter only writes NDJSON and CSV");
+		this.out = out;
+		json = format == Format.NDJSON;
+		keys = new byte[columns.length][];
+		for (int i = 0; i < columns.length; i++)
+			keys[i] = ((json ? ",\"" : ",") + columns[i] + (json ? "\":" : "")).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the CSV header record; NDJSON has none.
+	 */
+	void header() {
+		if (json) return;
+		append("filename");
+		for (byte[] key : keys) append(key);
+		append('\n');
+	}
+
+	/** Starts a row. Follow with one number() per column, then endRow().
+	 * @param path Name of the file the row describes.
+	 */
+	void startRow(String path) {
+		if (json) append("{\"path\":");
+		text(path);
+		column = 0;
+	}
+
+	void number(long value) {
+		byte[] key = keys[column++];
+		if (json) append(key);
+		else append(',');
+		if (value < 0) {
+			if (value == Long.MIN_VALUE) {
+				append(Long.toString(value));
+				return;
+			}
+			append('-');
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) digits++;
+		reserve(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	void endRow() {
+		if (json) append('}');
+		append('\n');
+	}
+
+	/** Records that a watched file is gone: a "deleted" NDJSON object, or a CSV record with empty cells.
+	 * @param path Name of the file.
+	 */
+	void deleted(String path) {
+		if (json) append("{\"path\":");
+		text(path);
+		if (json) append(",\"deleted\":true}");
+		else for (int i = 0; i < keys.length; i++) append(',');
+		append('\n');
+	}
+
+	/**
+	 * Writes out whatever is buffered.
+	 */
+	void flush() {
+		try {
+			out.write(buffer, 0, length);
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write output.", e);
+		}
+		length = 0;
+	}
+
+	/**
+	 * Appends a name as a JSON string, or as a CSV field quoted only if it has to be.
+	 */
+	private void text(String value) {
+		boolean quoted = json || needsQuotes(value);
+		if (quoted) append('"');
+		for (int i = 0; i < value.length();) {
+			int c = value.codePointAt(i);
+			i += Character.charCount(c);
+			if (c == '"') append(json ? '\\' : '"'); //CSV doubles the quote
+			if (json && c == '\\') append('\\');
+			if (json && c < ' ') {
+				append("\\u00");
+				append(HEX[c >> 4]);
+				append(HEX[c & 0xF]);
+			}
+			else utf8(c);
+		}
+		if (quoted) append('"');
+	}
+
+	private void utf8(int c) {
+		if (c < 0x80) append(c);
+		else if (c < 0x800) {
+			append(0xC0 | c >> 6);
+			append(0x80 | c & 0x3F);
+		}
+		else if (c < 0x10000) {
+			append(0xE0 | c >> 12);
+			append(0x80 | c >> 6 & 0x3F);
+			append(0x80 | c & 0x3F);
+		}
+		else {
+			append(0xF0 | c >> 18);
+			append(0x80 | c >> 12 & 0x3F);
+			append(0x80 | c >> 6 & 0x3F);
+			append(0x80 | c & 0x3F);
+		}
+	}
+
+	private static boolean needsQuotes(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r') return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Appends a string of characters below 0x100, one byte each.
+	 */
+	private void append(String ascii) {
+		reserve(ascii.length());
+		for (int i = 0; i < ascii.length(); i++) buffer[length++] = (byte) ascii.charAt(i);
+	}
+
+	private void append(byte[] bytes) {
+		reserve(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void append(int b) {
+		reserve(1);
+		buffer[length++] = (byte) b;
+	}
+
+	/**
+	 * Makes room for n more bytes, flushing if the buffer cannot take them.
+	 */
+	private void reserve(int n) {
+		if (length + n <= BUFFER_SIZE) return;
+		try { out.write(buffer, 0, length); }
+		catch (IOException e) { throw new UncheckedIOException("Could not write output.", e); }
+		length = 0;
+		if (n > BUFFER_SIZE) throw new IllegalArgumentException("Cell longer than the output buffer");
+	}
+}
@@ -1,4 +1,5 @@
 import java.io.File;
+import java.nio.channels.ReadableByteChannel;
 
 /*	Metrics.java
 
@@ -11,70 +12,82 @@ import java.io.File;
 */
 
 public class SourceMetrics extends Metrics {
-		protected String filePath;
+		public SourceMetrics() {
+			super();
+		}
+		public SourceMetrics(MetricsPlan plan) {
+			super(plan);
+		}
+		SourceMetrics(MetricsPlan plan, MetricsReadOptions options) {
+			super(plan, options);
+		}
 
 		public boolean setPath(String path) {
 	    	filePath = path;
-	    	try {
-	    		this.metricsNode = new MetricsCodeNode(new File(path));
-	    		((MetricsCodeNode) metricsNode).getFileMetrics();
-	    	} catch (Exception e) {
-	    		System.out.println("Could not create metricsCodeNode!");
-	    		e.printStackTrace();
-	    	}
+	    	MetricsEvents.FileAnalysis event = new MetricsEvents.FileAnalysis();
+	    	event.begin();
+	    	this.metricsNode = new MetricsCodeNode(new File(path), plan, options);
+	    	((MetricsCodeNode) metricsNode).getFileMetrics();
+	    	MetricsEvents.fileAnalyzed(event, this, metricsNode.file);
 	    	return ((MetricsCodeNode) metricsNode).file.exists();
 	    }
     
+	    public void setStream(ReadableByteChannel in, String name, String extension) {
+	    	filePath = name;
+	    	metricsNode = new MetricsCodeNode(extension, plan);
+	    	metricsNode.getStreamMetrics(in);
+	    }
+    
 	    public boolean isSource() {
 			return true;
 		};
 		
 		// source code line counts
 		//
-		 public int getSourceLineCount() {
+		 public long getSourceLineCount() {
 			 return ((MetricsCodeNode) metricsNode).linesOfCode;
 		 };
-		 public int getCommentLineCount() {
+		 public long getCommentLineCount() {
 			 return ((MetricsCodeNode) metricsNode).linesOfComment;
 		 };
 		
 		// Halstead metrics
 		//
-		 public int getHalsteadn1() {
+		 public long getHalsteadn1() {
 			 return ((MetricsCodeNode) metricsNode).nodeTotalOperands;
 		 };            // number of distinct operands
-		 public int getHalsteadn2() {
+		 public long getHalsteadn2() {
 			 return ((MetricsCodeNode) metricsNode).nodeTotalOperators;
 		 };            // number of distinct operators
-		 public int getHalsteadN1() {
+		 public long getHalsteadN1() {
 			 return ((MetricsCodeNode) metricsNode).uniqueOperands == null ? 0 : ((MetricsCodeNode) metricsNode).uniqueOperands.size();
 		 };            // number of operands
-		 public int getHalsteadN2(){
+		 public long getHalsteadN2(){
 			 return ((MetricsCodeNode) metricsNode).uniqueOperators == null ? 0 : ((MetricsCodeNode) metricsNode).uniqueOperators.size();
 		 };            // number of operators
 		
-		 public int getHalsteadVocabulary() {
+		 public long getHalsteadVocabulary() {
 			 return ((MetricsCodeNode) metricsNode).vocabulary;
 		 };
-		 public int getHalsteadProgramLength() {
+		 public long getHalsteadProgramLength() {
 			 return ((MetricsCodeNode) metricsNode).length;
 		 };
-		 public int getHalsteadCalculatedProgramLenght() {
+		 public long getHalsteadCalculatedProgramLenght() {
 			 return ((MetricsCodeNode) metricsNode).calcLength;
 		 };
-		 public int getHalsteadVolume() {
+		 public long getHalsteadVolume() {
 			 return ((MetricsCodeNode) metricsNode).volume;
 		 };
-		 public int getHalsteadDifficulty() {
+		 public long getHalsteadDifficulty() {
 			 return ((MetricsCodeNode) metricsNode).difficulty;
 		 };
-		 public int getHalsteadEffort() {
+		 public long getHalsteadEffort() {
 			 return ((MetricsCodeNode) metricsNode).effort;
 		 };
-		 public int getHalsteadTime() {
+		 public long getHalsteadTime() {
 			 return ((MetricsCodeNode) metricsNode).time;
 		 };
-		 public int getHalsteadBugs() {
+		 public long getHalsteadBugs() {
 			 return ((MetricsCodeNode) metricsNode).bugs;
 		 };
  }